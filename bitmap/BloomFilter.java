@@ -4,21 +4,51 @@ package com.bitmap;
  * Created by young on 2017/9/2.
  */
 
+import com.bitmap.ResidImpl.hash.LongAdder;
+
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
-import java.util.BitSet;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static com.google.common.base.Preconditions.checkArgument;
 
+/**
+ * 线程安全的布隆过滤器，位保存在 long 数组中，以 CAS 置位，多个线程的 add 与 check 不需要加锁。
+ * 位数组按 2^30 位分段，以 long 下标寻址，位数不受 int 的限制，只受内存的限制
+ */
 public class BloomFilter implements Serializable {
-    private static final long serialVersionUID = -5221305273707291280L;
+    // 位数组由 BitSet 改为分段的 AtomicLongArray、hash算法改为 64 位双重hash、计数改为 LongAdder 后，旧版本保存的文件不再兼容
+    private static final long serialVersionUID = -6154790823512744029L;
+    private static final int LONG_ADDRESSABLE_BITS = 6;
+    /**
+     * 每段 2^24 个 long，即 128MB、2^30 位
+     */
+    private static final int SEGMENT_WORD_BITS = 24;
+    private static final int SEGMENT_WORDS = 1 << SEGMENT_WORD_BITS;
+    /**
+     * 段数不能超过 int 的范围
+     */
+    private static final long MAX_BITS = (long) Integer.MAX_VALUE << (SEGMENT_WORD_BITS + LONG_ADDRESSABLE_BITS);
+    /**
+     * 64 位 FNV-1a 的 offset basis 与 prime，第一个hash值用
+     */
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    /**
+     * 第二个hash值的初值，取 128 位 FNV 的 offset basis 的低 64 位
+     */
+    private static final long SECOND_OFFSET_BASIS = 0x62b821756295c58dL;
     private final int[] seeds;
-    private final int size;
-    private final BitSet notebook;
+    private final long size;
+    private final AtomicLongArray[] notebook;
     private final MisjudgmentRate rate;
-    private final AtomicInteger useCount = new AtomicInteger(0);
+    /**
+     * 已置1的位数，只统计由0变为1的位，因此是准确的；分段计数，多线程置位时不会争用同一个变量
+     */
+    private final LongAdder useCount = new LongAdder();
     private final Double autoClearRate;
 
     /**
@@ -26,7 +56,7 @@ public class BloomFilter implements Serializable {
      *
      * @param dataCount 预期处理的数据规模，如预期用于处理1百万数据的查重，这里则填写1000000
      */
-    public BloomFilter(int dataCount) {
+    public BloomFilter(long dataCount) {
         this(MisjudgmentRate.MIDDLE, dataCount, null);
     }
 
@@ -37,31 +67,36 @@ public class BloomFilter implements Serializable {
      *                      当过滤器使用率达到100%时，则无论传入什么数据，都会认为在数据已经存在了
      *                      当希望过滤器使用率达到80%时自动清空重新使用，则传入0.8
      */
-    public BloomFilter(MisjudgmentRate rate, int dataCount, Double autoClearRate) {
+    public BloomFilter(MisjudgmentRate rate, long dataCount, Double autoClearRate) {
+        checkArgument(dataCount > 0, "数据规模 dataCount (%s) 必须大于0", dataCount);
+        checkArgument(dataCount <= MAX_BITS / rate.seeds.length, "位数太大溢出了，请降低误判率或者降低数据大小");
         long bitSize = rate.seeds.length * dataCount;
-        if (bitSize < 0 || bitSize > Integer.MAX_VALUE) {
-            throw new RuntimeException("位数太大溢出了，请降低误判率或者降低数据大小");
-        }
         this.rate = rate;
         seeds = rate.seeds;
-        size = (int) bitSize;
-        notebook = new BitSet(size);
+        size = bitSize;
+        long words = (size + Long.SIZE - 1) >>> LONG_ADDRESSABLE_BITS;
+        notebook = new AtomicLongArray[(int) ((words + SEGMENT_WORDS - 1) >>> SEGMENT_WORD_BITS)];
+        for (int i = 0; i < notebook.length; i++) {
+            notebook[i] = new AtomicLongArray((int) Math.min(SEGMENT_WORDS, words - ((long) i << SEGMENT_WORD_BITS)));
+        }
         this.autoClearRate = autoClearRate;
     }
 
     public void add(String data) {
         checkNeedClear();
 
+        long hash1 = hash(data, FNV_OFFSET_BASIS);
+        long hash2 = hash(data, SECOND_OFFSET_BASIS);
         for (int i = 0; i < seeds.length; i++) {
-            int index = hash(data, seeds[i]);
-            setTrue(index);
+            setTrue(index(hash1, hash2, i));
         }
     }
 
     public boolean check(String data) {
+        long hash1 = hash(data, FNV_OFFSET_BASIS);
+        long hash2 = hash(data, SECOND_OFFSET_BASIS);
         for (int i = 0; i < seeds.length; i++) {
-            int index = hash(data, seeds[i]);
-            if (!notebook.get(index)) {
+            if (!get(index(hash1, hash2, i))) {
                 return false;
             }
         }
@@ -70,6 +105,9 @@ public class BloomFilter implements Serializable {
 
     /**
      * 如果不存在就进行记录并返回false，如果存在了就返回true
+     * <p>
+     * 所有的位都直接置1，只要有一个位是由本次调用从0变为1的，就可以认为整个字符串都是第一次出现的。
+     * 同一个字符串的并发调用中，至少有一个返回false
      *
      * @param data
      * @return
@@ -77,30 +115,16 @@ public class BloomFilter implements Serializable {
     public boolean addIfNotExist(String data) {
         checkNeedClear();
 
-        int[] indexs = new int[seeds.length];
         // 先假定存在
         boolean exist = true;
-        int index;
-
+        long hash1 = hash(data, FNV_OFFSET_BASIS);
+        long hash2 = hash(data, SECOND_OFFSET_BASIS);
         for (int i = 0; i < seeds.length; i++) {
-            indexs[i] = index = hash(data, seeds[i]);
-
-            if (exist) {
-                if (!notebook.get(index)) {
-                    // 只要有一个不存在，就可以认为整个字符串都是第一次出现的
-                    exist = false;
-                    // 补充之前的信息
-                    for (int j = 0; j <= i; j++) {
-                        setTrue(indexs[j]);
-                    }
-                }
-            } else {
-                setTrue(index);
+            if (set(index(hash1, hash2, i))) {
+                exist = false;
             }
         }
-
         return exist;
-
     }
 
     private void checkNeedClear() {
@@ -108,36 +132,93 @@ public class BloomFilter implements Serializable {
             if (getUseRate() >= autoClearRate) {
                 synchronized (this) {
                     if (getUseRate() >= autoClearRate) {
-                        notebook.clear();
-                        useCount.set(0);
+                        clear();
                     }
                 }
             }
         }
     }
 
+    /**
+     * 保留 int 下标的版本，按旧签名编译的调用方不需要重新编译
+     */
     public void setTrue(int index) {
-        useCount.incrementAndGet();
-        notebook.set(index, true);
+        set(index);
     }
 
-    private int hash(String data, int seeds) {
-        char[] value = data.toCharArray();
-        int hash = 0;
-        if (value.length > 0) {
+    public void setTrue(long index) {
+        set(index);
+    }
 
-            for (int i = 0; i < value.length; i++) {
-                hash = i * hash + value[i];
+    /**
+     * 以 CAS 把下标为 index 的位置1，返回该位是否由本次调用从0变为1，是则计入 useCount
+     */
+    private boolean set(long index) {
+        long longIndex = index >>> LONG_ADDRESSABLE_BITS;
+        AtomicLongArray segment = notebook[(int) (longIndex >>> SEGMENT_WORD_BITS)];
+        int wordIndex = (int) longIndex & (SEGMENT_WORDS - 1);
+        // 只用到 index 的低6位
+        long mask = 1L << index;
+        long oldValue;
+        long newValue;
+        do {
+            oldValue = segment.get(wordIndex);
+            newValue = oldValue | mask;
+            if (oldValue == newValue) {
+                return false;
             }
+        } while (!segment.compareAndSet(wordIndex, oldValue, newValue));
+        useCount.increment();
+        return true;
+    }
+
+    /**
+     * 下标为 index 的位是否为1，供测试检查置位的结果
+     */
+    boolean get(long index) {
+        long longIndex = index >>> LONG_ADDRESSABLE_BITS;
+        AtomicLongArray segment = notebook[(int) (longIndex >>> SEGMENT_WORD_BITS)];
+        return (segment.get((int) longIndex & (SEGMENT_WORDS - 1)) & (1L << index)) != 0;
+    }
+
+    /**
+     * 对字符串遍历一次、不复制，得到一个 64 位的hash值：以 offsetBasis 为初值逐个字符做 FNV-1a，
+     * 再经 murmur3 的 fmix64 混合，使每一位都受所有字符的影响。
+     * 两个hash值由不同初值的两次遍历得到，而不是由第一个hash值推出：第二个若是第一个的函数，
+     * 第一个hash值相同的字符串所有下标都相同，双重hash就退化成了单个hash
+     */
+    private static long hash(CharSequence data, long offsetBasis) {
+        long hash = offsetBasis;
+        for (int i = 0; i < data.length(); i++) {
+            hash ^= data.charAt(i);
+            hash *= FNV_PRIME;
         }
+        return mix(hash);
+    }
 
-        hash = hash * seeds % size;
-        // 防止溢出变成负数
-        return Math.abs(hash);
+    /**
+     * murmur3 的 fmix64
+     */
+    private static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    /**
+     * 由两个 64 位的hash值 h1、h2 以双重hash得到第 i 个下标 h1 + i * h2，
+     * 下标是 long，可以覆盖超过 2^31 位的位数组
+     */
+    private long index(long hash1, long hash2, int i) {
+        // 去掉符号位保证非负
+        return ((hash1 + i * hash2) & Long.MAX_VALUE) % size;
     }
 
     public double getUseRate() {
-        return (double) useCount.intValue() / (double) size;
+        return (double) useCount.sum() / (double) size;
     }
 
     public void saveFilterToFile(String path) {
@@ -161,8 +242,12 @@ public class BloomFilter implements Serializable {
      * 清空过滤器中的记录信息
      */
     public void clear() {
-        useCount.set(0);
-        notebook.clear();
+        useCount.reset();
+        for (AtomicLongArray segment : notebook) {
+            for (int i = 0; i < segment.length(); i++) {
+                segment.set(i, 0);
+            }
+        }
     }
 
     public MisjudgmentRate getRate() {
@@ -183,7 +268,7 @@ public class BloomFilter implements Serializable {
      * @author lianghaohui
      */
     public enum MisjudgmentRate {
-        // 这里要选取质数，能很好的降低错误率
+        // 种子的个数即每个字符串分配的位数；下标由双重hash得到，种子的值不再参与计算
         /**
          * 每个字符串分配4个位
          */
@@ -0,0 +1,140 @@
+package com.bitmap;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Checks the local {@link BloomFilter}: the bits of a filter of more than 2^31 bits, spread over
+ * several segments, and concurrent CAS puts of the same elements. Run it with {@code main}; it
+ * needs about 400MB of heap; a failed check throws an {@link AssertionError}.
+ */
+public class BloomFilterTest {
+
+    public static void main(String[] args) throws Exception {
+        dataCount();
+        segments();
+        concurrentAdds();
+        System.out.println("OK");
+    }
+
+    /**
+     * An empty filter and one past the largest size are refused, each with its own message
+     */
+    private static void dataCount() {
+        try {
+            new BloomFilter(0);
+            throw new AssertionError("created a filter for 0 elements");
+        } catch (IllegalArgumentException e) {
+            check(!e.getMessage().contains("溢出"), "0 elements reported as an overflow: %s", e.getMessage());
+        }
+        try {
+            new BloomFilter(BloomFilter.MisjudgmentRate.HIGH, Long.MAX_VALUE / 2, null);
+            throw new AssertionError("created a filter past the largest size");
+        } catch (IllegalArgumentException e) {
+            check(e.getMessage().contains("溢出"), "an overflow reported as: %s", e.getMessage());
+        }
+    }
+
+    /**
+     * Indexes above 2^31 reach their own bit of the third segment, neither wrapped nor truncated
+     */
+    private static void segments() {
+        // 3 * 2^30 bits, three segments
+        long size = 3L << 30;
+        BloomFilter filter = new BloomFilter(BloomFilter.MisjudgmentRate.VERY_SMALL, size / 4, null);
+        long[] indexes = {(1L << 31) + 1, size - 1, (1L << 30) + 3, 5};
+        for (long index : indexes) {
+            filter.setTrue(index);
+        }
+        filter.setTrue(7);
+        for (long index : indexes) {
+            check(filter.get(index), "bit %s is not set", index);
+            check(!filter.get(index + (index == size - 1 ? -1 : 1)), "a neighbour of bit %s is set", index);
+        }
+        check(filter.get(7), "bit 7, set by an int index, is not set");
+        // wrapped at 2^31 or 2^30, (1L << 31) + 1 would have set bit 1
+        check(!filter.get(1), "bit 1 is set");
+        check(filter.getUseRate() * size == indexes.length + 1, "%s bits counted", filter.getUseRate() * size);
+
+        List<String> elements = elements("s", 100000);
+        for (String element : elements) {
+            filter.add(element);
+        }
+        for (String element : elements) {
+            check(filter.check(element), "%s is missing", element);
+        }
+    }
+
+    /**
+     * Threads adding the same elements set each bit once: every element is new to at least one of
+     * them, and the count of set bits is exact
+     */
+    private static void concurrentAdds() throws Exception {
+        final BloomFilter filter = new BloomFilter(BloomFilter.MisjudgmentRate.SMALL, 20000, null);
+        final List<String> elements = elements("c", 10000);
+        int threads = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<boolean[]>> results = new ArrayList<Future<boolean[]>>();
+            for (int t = 0; t < threads; t++) {
+                results.add(executor.submit(new Callable<boolean[]>() {
+                    @Override
+                    public boolean[] call() {
+                        boolean[] existed = new boolean[elements.size()];
+                        for (int i = 0; i < elements.size(); i++) {
+                            existed[i] = filter.addIfNotExist(elements.get(i));
+                        }
+                        return existed;
+                    }
+                }));
+            }
+            int[] firsts = new int[elements.size()];
+            for (Future<boolean[]> result : results) {
+                boolean[] existed = result.get();
+                for (int i = 0; i < existed.length; i++) {
+                    if (!existed[i]) {
+                        firsts[i]++;
+                    }
+                }
+            }
+            long size = 8L * 20000;
+            long setBits = 0;
+            for (long i = 0; i < size; i++) {
+                if (filter.get(i)) {
+                    setBits++;
+                }
+            }
+            check(Math.round(filter.getUseRate() * size) == setBits,
+                    "%s bits counted, %s set", filter.getUseRate() * size, setBits);
+            // an element is new to no thread only if other elements set all its bits, a false positive
+            int neverNew = 0;
+            for (int i = 0; i < firsts.length; i++) {
+                check(filter.check(elements.get(i)), "%s is missing", elements.get(i));
+                if (firsts[i] == 0) {
+                    neverNew++;
+                }
+            }
+            check(neverNew < elements.size() / 20, "%s elements were new to no thread", neverNew);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static List<String> elements(String prefix, int count) {
+        List<String> elements = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++) {
+            elements.add(prefix + i);
+        }
+        return elements;
+    }
+
+    private static void check(boolean condition, String message, Object... args) {
+        if (!condition) {
+            throw new AssertionError(String.format(message, args));
+        }
+    }
+}
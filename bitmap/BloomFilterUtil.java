@@ -1,68 +1,216 @@
 package com.bitmap;
 
+import com.bitmap.ResidImpl.JedisPoolConnectionProvider;
+import com.bitmap.ResidImpl.RedisConnectionProvider;
+import com.bitmap.ResidImpl.hash.BloomFilter;
+import com.bitmap.ResidImpl.hash.Funnel;
+import com.bitmap.ResidImpl.hash.Funnels;
+import com.bitmap.ResidImpl.hash.HashCode;
+import com.bitmap.ResidImpl.hash.HashFunction;
+import com.bitmap.ResidImpl.hash.Hashing;
+import com.google.common.base.Charsets;
+import com.google.common.primitives.Longs;
 import redis.clients.jedis.Jedis;
 
 
+import javax.annotation.Nullable;
 import javax.annotation.Resource;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
 public class BloomFilterUtil {
-    private final String REDIS_KEY = "boomfilter";
+    /**
+     * 无参构造时使用的key，保存 2^31 位的位数组
+     */
+    private static final String LEGACY_REDIS_KEY = "boomfilter";
+
+    /**
+     * 位数组所在的redis key，每个过滤器一个
+     */
+    private final String redisKey;
     private int numFunction;
 
+    /**
+     * 位数组的大小，所有的下标都落在 [0, numBits) 中。默认为 2^31，与按容量配置之前的下标一致
+     */
+    private long numBits = 1L << 31;
+
+    /**
+     * 计算下标所用的hash函数，为 null 时按 {@link String#hashCode()} 计算，与原来的下标一致
+     */
+    @Nullable
+    private final HashFunction hashFunction;
+
+    /**
+     * 把用户pin写入hash函数的方式，hashFunction 为 null 时不使用
+     */
+    @Nullable
+    private final Funnel<? super String> funnel;
+
+    /**
+     * 位数为 2^31，下标仍按 {@link String#hashCode()} 计算，redis 中已有的位数组继续可用。
+     * hash函数的个数须由 {@link #setNumFunction(int)} 设置，否则 {@link #isExist(String)} 抛出异常
+     *
+     * @deprecated 使用 {@link #BloomFilterUtil(String, long, double)}，位数与hash函数的个数按容量取最优值
+     */
+    @Deprecated
+    public BloomFilterUtil() {
+        this.redisKey = LEGACY_REDIS_KEY;
+        this.hashFunction = null;
+        this.funnel = null;
+    }
+
+    /**
+     * 按预计加入的数量与期望的误判率配置，位数与hash函数的个数取最优值，
+     * 与 {@link BloomFilter#create} 的算法一致，redis 中的位数组只占用所需的大小。
+     * 位数组保存在 {@code redisKey} 中，不能是无参构造使用的 "boomfilter"：其中 2^31 位的旧数据按另一种hash写入
+     *
+     * @param redisKey           位数组所在的redis key
+     * @param expectedInsertions 预计加入的用户pin的数量
+     * @param fpp                期望的误判率，在 (0, 1) 中
+     */
+    public BloomFilterUtil(String redisKey, long expectedInsertions, double fpp) {
+        this(redisKey, expectedInsertions, fpp, Hashing.murmur3_128(), Funnels.stringFunnel(Charsets.UTF_8));
+    }
+
+    /**
+     * 同 {@link #BloomFilterUtil(String, long, double)}，使用指定的hash函数计算下标。
+     * 至少 128 位的hash函数按两个 64 位的hash做双重hash，更短的按两个 32 位的hash
+     *
+     * @param redisKey           位数组所在的redis key
+     * @param expectedInsertions 预计加入的用户pin的数量
+     * @param fpp                期望的误判率，在 (0, 1) 中
+     * @param hashFunction       hash函数，如 {@link Hashing#murmur3_128()}
+     * @param funnel             把用户pin写入hash函数的方式
+     */
+    public BloomFilterUtil(
+            String redisKey, long expectedInsertions, double fpp, HashFunction hashFunction, Funnel<? super String> funnel) {
+        checkArgument(
+                !LEGACY_REDIS_KEY.equals(checkNotNull(redisKey)),
+                "%s holds the bits of the unsized BloomFilterUtil, hashed another way",
+                redisKey);
+        this.redisKey = redisKey;
+        this.hashFunction = checkNotNull(hashFunction);
+        this.funnel = checkNotNull(funnel);
+        checkArgument(expectedInsertions > 0, "Expected insertions (%s) must be > 0", expectedInsertions);
+        checkArgument(fpp > 0.0, "False positive probability (%s) must be > 0.0", fpp);
+        checkArgument(fpp < 1.0, "False positive probability (%s) must be < 1.0", fpp);
+        long bits = Math.max(1, BloomFilter.optimalNumOfBits(expectedInsertions, fpp));
+        // redis 的字符串最多 2^32 位
+        checkArgument(bits <= 1L << 32, "%s bits do not fit in one redis string", bits);
+        this.numBits = bits;
+        this.numFunction = BloomFilter.optimalNumOfHashFunctions(expectedInsertions, bits);
+    }
+
     public void setNumFunction(int numFunction) {
+        checkArgument(numFunction > 0, "numFunction (%s) must be > 0", numFunction);
         this.numFunction = numFunction;
     }
 
 //    @Resource
 //    private R2mClusterClient statR2mClusterClient;
-    private Jedis jedis = new Jedis("localhost");
+    /**
+     * 每次调用借出自己的连接，{@link Jedis} 不能在线程间共享
+     */
+    private RedisConnectionProvider connections = JedisPoolConnectionProvider.localhost();
+
+    public void setConnections(RedisConnectionProvider connections) {
+        this.connections = checkNotNull(connections);
+    }
 
     /**
-     * 判断用户pin是否加入过集合，如果没有加入过则加入
+     * 判断用户pin是否加入过集合，如果没有加入过则加入。
+     * 所有的位由一次 BITFIELD SET 置为1并返回旧值，判断与加入在 redis 端原子完成，
+     * 只需一次往返，并发的调用中只有一个会得到 false
      *
      * @param key
      * @return
+     * @throws IllegalStateException 如果没有设置hash函数的个数
      */
     public boolean isExist (String key) throws Exception{
-        int[] indexs = getIndexs(key);
-        boolean result = true;
-        for (int index : indexs) {
-            if (!jedis.getbit(REDIS_KEY, index)) {
-                result = false;
-            }
+        checkState(numFunction > 0, "numFunction is not set");
+        long[] indexs = getIndexs(key);
+        String[] arguments = new String[indexs.length * 4];
+        for (int i = 0; i < indexs.length; i++) {
+            arguments[i * 4] = "SET";
+            arguments[i * 4 + 1] = "u1";
+            arguments[i * 4 + 2] = String.valueOf(indexs[i]);
+            arguments[i * 4 + 3] = "1";
         }
-        if (!result) {
-            add(key);
+        List<Long> oldValues;
+        try (Jedis jedis = connections.getResource(redisKey)) {
+            oldValues = jedis.bitfield(redisKey, arguments);
         }
-        return result;
+        for (Long oldValue : oldValues) {
+            if (oldValue == 0L) {
+                return false;
+            }
+        }
+        return true;
     }
 
-    private void add(String key) {
-        int[] indexs = getIndexs(key);
-        for (int index : indexs) {
-            Boolean result = jedis.setbit(REDIS_KEY, index, true);
-            System.out.println();
+    /**
+     * 根据key计算 numFunction 个下标，取模落在 [0, numBits) 中。
+     * 与 {@link BloomFilter} 相同，由一次hash得到两个hash值 h1、h2，第 i 个下标取 h1 + i * h2
+     *
+     * @param key
+     * @return
+     */
+    private long[] getIndexs(String key) {
+        if (hashFunction == null) {
+            return getLegacyIndexs(key);
+        }
+        HashCode hashCode = hashFunction.hashObject(key, funnel);
+        long[] result = new long[numFunction];
+        if (hashCode.bits() >= 128) {
+            byte[] bytes = hashCode.asBytes();
+            long hash1 = Longs.fromBytes(
+                    bytes[7], bytes[6], bytes[5], bytes[4], bytes[3], bytes[2], bytes[1], bytes[0]);
+            long hash2 = Longs.fromBytes(
+                    bytes[15], bytes[14], bytes[13], bytes[12], bytes[11], bytes[10], bytes[9], bytes[8]);
+            long combinedHash = hash1;
+            for (int i = 0; i < numFunction; i++) {
+                // Make the combined hash positive and indexable
+                result[i] = (combinedHash & Long.MAX_VALUE) % numBits;
+                combinedHash += hash2;
+            }
+        } else {
+            long hash64 = hashCode.padToLong();
+            int hash1 = (int) hash64;
+            int hash2 = (int) (hash64 >>> 32);
+            for (int i = 0; i < numFunction; i++) {
+                int combinedHash = hash1 + (i + 1) * hash2;
+                // Flip all the bits if it's negative (guaranteed positive number)
+                if (combinedHash < 0) {
+                    combinedHash = ~combinedHash;
+                }
+                result[i] = combinedHash % numBits;
+            }
         }
+        return result;
     }
 
     /**
-     * 根据
+     * 无参构造时的下标：h1 为 {@link #hash(String)}，h2 为 h1 >>> 16，第 i 个下标取 h1 + i * h2
      *
      * @param key
      * @return
      */
-    private int[] getIndexs(String key) {
+    private long[] getLegacyIndexs(String key) {
         int hash1 = hash(key);
         int hash2 = hash1 >>> 16;
-        int[] result = new int[numFunction];
+        long[] result = new long[numFunction];
         for (int i = 0; i < numFunction; i++) {
             int nextHash = hash1 + i * hash2;
             if (nextHash < 0) {
                 nextHash = ~nextHash;
             }
-            result[i] = nextHash;
+            result[i] = nextHash % numBits;
         }
         return result;
     }
@@ -79,8 +227,11 @@ public class BloomFilterUtil {
     }
 
     public void test(int size) {
-        //statR2mClusterClient.del(REDIS_KEY);
-        Long bitcount = jedis.bitcount(REDIS_KEY);
+        //statR2mClusterClient.del(redisKey);
+        Long bitcount;
+        try (Jedis jedis = connections.getResource(redisKey)) {
+            bitcount = jedis.bitcount(redisKey);
+        }
 
         Set<String> set = new HashSet<String>(size);
         String key;
@@ -110,6 +261,6 @@ public class BloomFilterUtil {
     }
 
     public static void main(String[] args) {
-        new  BloomFilterUtil().test(10);
+        new  BloomFilterUtil("boomfilter_test", 10000, 0.01).test(10);
     }
 }
\ No newline at end of file
@@ -0,0 +1,85 @@
+package com.bitmap.ResidImpl;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisCluster;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisException;
+import redis.clients.util.JedisClusterCRC16;
+import redis.clients.util.SafeEncoder;
+
+import java.util.List;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * A {@link RedisConnectionProvider} for a redis cluster. It hands out a pooled connection to the
+ * master serving the slot of each key, reusing the node pools of a {@link JedisCluster}, so that
+ * the segments of a filter can be pipelined on the node that owns them.
+ * <p>
+ * The slot table is loaded once; call {@link #renewSlotCache()} after the cluster is resharded.
+ */
+public final class JedisClusterConnectionProvider implements RedisConnectionProvider {
+    private static final int CLUSTER_SLOTS = 16384;
+
+    private final JedisCluster cluster;
+
+    /**
+     * The pool of the master serving each slot
+     */
+    private volatile JedisPool[] slots;
+
+    public JedisClusterConnectionProvider(JedisCluster cluster) {
+        this.cluster = checkNotNull(cluster);
+        renewSlotCache();
+    }
+
+    @Override
+    public Jedis getResource(String key) {
+        int slot = JedisClusterCRC16.getSlot(key);
+        JedisPool pool = slots[slot];
+        if (pool == null) {
+            renewSlotCache();
+            pool = slots[slot];
+            if (pool == null) {
+                throw new JedisException("No cluster node serves slot " + slot);
+            }
+        }
+        return pool.getResource();
+    }
+
+    /**
+     * Reloads the slot to master mapping with CLUSTER SLOTS from the first reachable node.
+     *
+     * @throws JedisConnectionException if no node of the cluster can be reached
+     */
+    public synchronized void renewSlotCache() {
+        Map<String, JedisPool> nodes = cluster.getClusterNodes();
+        for (JedisPool node : nodes.values()) {
+            List<Object> ranges;
+            try (Jedis jedis = node.getResource()) {
+                ranges = jedis.clusterSlots();
+            } catch (JedisConnectionException e) {
+                continue;
+            }
+
+            JedisPool[] slots = new JedisPool[CLUSTER_SLOTS];
+            for (Object range : ranges) {
+                // [start slot, end slot, [master host, master port, ...], replicas...]
+                List<?> slotRange = (List<?>) range;
+                List<?> master = (List<?>) slotRange.get(2);
+                String nodeKey = SafeEncoder.encode((byte[]) master.get(0)) + ":" + master.get(1);
+                JedisPool pool = nodes.get(nodeKey);
+                int start = ((Long) slotRange.get(0)).intValue();
+                int end = ((Long) slotRange.get(1)).intValue();
+                for (int slot = start; slot <= end; slot++) {
+                    slots[slot] = pool;
+                }
+            }
+            this.slots = slots;
+            return;
+        }
+        throw new JedisConnectionException("No reachable node in the redis cluster");
+    }
+}
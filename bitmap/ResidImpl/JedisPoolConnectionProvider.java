@@ -0,0 +1,73 @@
+package com.bitmap.ResidImpl;
+
+import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.Protocol;
+
+import java.io.Closeable;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * A {@link RedisConnectionProvider} backed by a {@link JedisPool}, so that as many threads as the
+ * pool has connections can work on the same filter at once.
+ */
+public final class JedisPoolConnectionProvider implements RedisConnectionProvider, Closeable {
+
+    private final JedisPool pool;
+
+    /**
+     * Creates a provider with the default pool settings and timeouts.
+     */
+    public JedisPoolConnectionProvider(String host, int port) {
+        this(new JedisPoolConfig(), host, port, Protocol.DEFAULT_TIMEOUT, Protocol.DEFAULT_TIMEOUT);
+    }
+
+    /**
+     * @param poolConfig        the pool settings, e.g. the maximum number of connections
+     * @param host              the redis host
+     * @param port              the redis port
+     * @param connectionTimeout the connect timeout in milliseconds
+     * @param soTimeout         the socket read timeout in milliseconds
+     */
+    public JedisPoolConnectionProvider(
+            GenericObjectPoolConfig poolConfig, String host, int port, int connectionTimeout, int soTimeout) {
+        checkNotNull(poolConfig);
+        checkNotNull(host);
+        checkArgument(port > 0, "port (%s) must be > 0", port);
+        checkArgument(connectionTimeout >= 0, "connectionTimeout (%s) must be >= 0", connectionTimeout);
+        checkArgument(soTimeout >= 0, "soTimeout (%s) must be >= 0", soTimeout);
+        this.pool = new JedisPool(
+                poolConfig, host, port, connectionTimeout, soTimeout, null, Protocol.DEFAULT_DATABASE, null,
+                false, null, null, null);
+    }
+
+    /**
+     * Returns the shared provider for the redis on localhost, used by the filters that are not given
+     * a provider explicitly.
+     */
+    public static JedisPoolConnectionProvider localhost() {
+        return LocalhostHolder.INSTANCE;
+    }
+
+    @Override
+    public Jedis getResource(String key) {
+        return pool.getResource();
+    }
+
+    /**
+     * Closes the pool and all its idle connections.
+     */
+    @Override
+    public void close() {
+        pool.close();
+    }
+
+    private static final class LocalhostHolder {
+        static final JedisPoolConnectionProvider INSTANCE =
+                new JedisPoolConnectionProvider("localhost", Protocol.DEFAULT_PORT);
+    }
+}
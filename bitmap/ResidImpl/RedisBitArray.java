@@ -4,6 +4,7 @@ import com.google.common.math.LongMath;
 import com.google.common.primitives.Ints;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisCluster;
+import redis.clients.util.SafeEncoder;
 
 import javax.annotation.Nullable;
 import java.math.RoundingMode;
@@ -11,6 +12,7 @@ import java.util.Arrays;
 import java.util.concurrent.atomic.AtomicLongArray;
 
 import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
 
 /**
  * Models a redis array of bits.
@@ -24,18 +26,37 @@ final class RedisBitArray {
     private String actKey;
     private String statType;
 
-    Jedis jedis = new Jedis("localhost");
+    /**
+     * The redis key, built once rather than on every command
+     */
+    private final String key;
+    private final byte[] binaryKey;
+
+    /**
+     * Number of bits, fixed when the array is created
+     */
+    private final long bitSize;
 
-    RedisBitArray(long bits, String actKey, String statType) {
+    /**
+     * Source of the connections; every operation borrows its own, so the array is thread-safe
+     */
+    private final RedisConnectionProvider connections;
+
+    RedisBitArray(long bits, RedisConnectionProvider connections, String actKey, String statType) {
 //        this(new long[Ints.checkedCast(LongMath.divide(bits, 64, RoundingMode.CEILING))], actKey, statType);
         int redisBits = Ints.checkedCast(LongMath.divide(bits, 64, RoundingMode.CEILING)) * 64;
         checkArgument(redisBits > 0, "data length is zero!");
-
-        // the start index of redis's bitset is 0,the last index is size-1
-        jedis.setbit(getKey(actKey, statType), redisBits - 1, false);
-
+        this.connections = checkNotNull(connections);
         this.actKey = actKey;
         this.statType = statType;
+        this.key = getKey(actKey, statType);
+        this.binaryKey = SafeEncoder.encode(key);
+        this.bitSize = redisBits;
+
+        // the start index of redis's bitset is 0,the last index is size-1
+        try (Jedis jedis = connections.getResource(key)) {
+            jedis.setbit(binaryKey, redisBits - 1, false);
+        }
     }
 
 //    // Used by serialization
@@ -78,13 +99,17 @@ final class RedisBitArray {
         // We turned the bit on, so increment bitCount.
 //      bitCount.increment();
 //        再确认下是否与redis 命令一样，返回set 之间的值
-        return !jedis.setbit(getKey(actKey, statType), bitIndex, true);
+        try (Jedis jedis = connections.getResource(key)) {
+            return !jedis.setbit(binaryKey, bitIndex, true);
+        }
 //        return true;
     }
 
     boolean get(long bitIndex) {
 //        return (data.get((int) (bitIndex >>> 6)) & (1L << bitIndex)) != 0;
-        return jedis.getbit(getKey(actKey, statType), bitIndex);
+        try (Jedis jedis = connections.getResource(key)) {
+            return jedis.getbit(binaryKey, bitIndex);
+        }
     }
 
     /**
@@ -105,7 +130,7 @@ final class RedisBitArray {
      */
     long bitSize() {
 //        return (long) data.length() * Long.SIZE;
-        return jedis.strlen(getKey(actKey, statType));
+        return bitSize;
     }
 
     /**
@@ -117,7 +142,9 @@ final class RedisBitArray {
      * underestimating, never overestimating.
      */
     long bitCount() {
-        return jedis.bitcount(getKey(actKey, statType));
+        try (Jedis jedis = connections.getResource(key)) {
+            return jedis.bitcount(binaryKey);
+        }
     }
 
 //    RedisBitArray copy() {
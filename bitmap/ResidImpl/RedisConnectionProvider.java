@@ -0,0 +1,19 @@
+package com.bitmap.ResidImpl;
+
+import redis.clients.jedis.Jedis;
+
+/**
+ * Hands out redis connections to the redis-backed bit arrays.
+ * <p>
+ * A single {@link Jedis} is not thread-safe, so every operation borrows its own connection and
+ * closes it when done; for pooled connections, closing returns them to the pool. Implementations
+ * must be thread-safe.
+ */
+public interface RedisConnectionProvider {
+
+    /**
+     * Returns a connection to the node serving {@code key}, for the exclusive use of the caller,
+     * who must close it. Single-node providers ignore the key.
+     */
+    Jedis getResource(String key);
+}
@@ -0,0 +1,159 @@
+package com.bitmap.ResidImpl.hash;
+
+import redis.clients.util.SafeEncoder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Builds the binary arguments of BITFIELD calls in per-thread buffers, so that a steady-state put
+ * or lookup encodes its bit offsets without allocating. The arrays returned are only valid until
+ * the next call on the same thread; that is enough because Jedis copies the arguments of a
+ * command into its output buffer as soon as the command is issued, pipelined or not. The SET
+ * arguments are returned as a list, as the script that sets bits takes them, and the list is
+ * reused too.
+ */
+final class BitfieldArguments {
+    private static final byte[] SET = SafeEncoder.encode("SET");
+    private static final byte[] GET = SafeEncoder.encode("GET");
+    private static final byte[] U1 = SafeEncoder.encode("u1");
+    private static final byte[] ONE = SafeEncoder.encode("1");
+
+    /**
+     * Number of decimal digits of Long.MAX_VALUE
+     */
+    private static final int MAX_DIGITS = 19;
+
+    private static final ThreadLocal<BitfieldArguments> BUFFERS = new ThreadLocal<BitfieldArguments>() {
+        @Override
+        protected BitfieldArguments initialValue() {
+            return new BitfieldArguments();
+        }
+    };
+
+    /**
+     * Argument arrays by length, as Jedis sends every element of the array it is given
+     */
+    private byte[][][] arguments = new byte[0][][];
+
+    /**
+     * List views of the argument arrays, by length
+     */
+    private final List<List<byte[]>> argumentLists = new ArrayList<List<byte[]>>();
+
+    /**
+     * Offset buffers by offset position in the call and number of digits
+     */
+    private byte[][][] offsets = new byte[0][][];
+
+    private BitfieldArguments() {
+    }
+
+    /**
+     * Returns the arguments of a BITFIELD call setting the bits at {@code offsets} to 1.
+     */
+    static List<byte[]> set(long[] offsets) {
+        BitfieldArguments buffers = BUFFERS.get();
+        buffers.fill(offsets, true);
+        return buffers.argumentList(offsets.length * 4);
+    }
+
+    /**
+     * Returns the arguments of a BITFIELD call reading the bits at {@code offsets}.
+     */
+    static byte[][] get(long[] offsets) {
+        return BUFFERS.get().fill(offsets, false);
+    }
+
+    /**
+     * Returns the number of bytes of {@code arguments}.
+     */
+    static long length(byte[][] arguments) {
+        long length = 0;
+        for (byte[] argument : arguments) {
+            length += argument.length;
+        }
+        return length;
+    }
+
+    /**
+     * Returns the number of bytes of {@code arguments}.
+     */
+    static long length(List<byte[]> arguments) {
+        long length = 0;
+        for (int i = 0; i < arguments.size(); i++) {
+            length += arguments.get(i).length;
+        }
+        return length;
+    }
+
+    private byte[][] fill(long[] bitOffsets, boolean set) {
+        byte[][] filled = arguments(bitOffsets.length * (set ? 4 : 3));
+        for (int i = 0, j = 0; i < bitOffsets.length; i++) {
+            filled[j++] = set ? SET : GET;
+            filled[j++] = U1;
+            filled[j++] = encode(i, bitOffsets[i]);
+            if (set) {
+                filled[j++] = ONE;
+            }
+        }
+        return filled;
+    }
+
+    private byte[][] arguments(int length) {
+        if (length >= arguments.length) {
+            byte[][][] grown = new byte[length + 1][][];
+            System.arraycopy(arguments, 0, grown, 0, arguments.length);
+            arguments = grown;
+        }
+        if (arguments[length] == null) {
+            arguments[length] = new byte[length][];
+        }
+        return arguments[length];
+    }
+
+    /**
+     * Returns the list view of the argument array of {@code length}, once it was filled.
+     */
+    private List<byte[]> argumentList(int length) {
+        while (argumentLists.size() <= length) {
+            argumentLists.add(null);
+        }
+        List<byte[]> list = argumentLists.get(length);
+        if (list == null) {
+            list = Arrays.asList(arguments[length]);
+            argumentLists.set(length, list);
+        }
+        return list;
+    }
+
+    /**
+     * Returns the decimal digits of the non-negative {@code value}, in the buffer of offset
+     * {@code position}.
+     */
+    private byte[] encode(int position, long value) {
+        if (position >= offsets.length) {
+            byte[][][] grown = new byte[position + 1][][];
+            System.arraycopy(offsets, 0, grown, 0, offsets.length);
+            offsets = grown;
+        }
+        if (offsets[position] == null) {
+            offsets[position] = new byte[MAX_DIGITS + 1][];
+        }
+        int digits = 1;
+        for (long rest = value / 10; rest > 0; rest /= 10) {
+            digits++;
+        }
+        byte[] buffer = offsets[position][digits];
+        if (buffer == null) {
+            buffer = new byte[digits];
+            offsets[position][digits] = buffer;
+        }
+        for (int i = digits - 1; i >= 0; i--) {
+            buffer[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        return buffer;
+    }
+}
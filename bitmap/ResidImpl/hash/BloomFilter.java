@@ -14,6 +14,9 @@
 
 package com.bitmap.ResidImpl.hash;
 
+import com.bitmap.ResidImpl.JedisClusterConnectionProvider;
+import com.bitmap.ResidImpl.JedisPoolConnectionProvider;
+import com.bitmap.ResidImpl.RedisConnectionProvider;
 import com.bitmap.ResidImpl.hash.BloomFilterStrategies.RedisBitArray;
 import com.google.common.annotations.Beta;
 import com.google.common.annotations.VisibleForTesting;
@@ -22,15 +25,23 @@ import com.google.common.base.Predicate;
 import com.google.common.math.DoubleMath;
 import com.google.common.primitives.SignedBytes;
 import com.google.common.primitives.UnsignedBytes;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.errorprone.annotations.CanIgnoreReturnValue;
 
 import javax.annotation.Nullable;
 import java.io.*;
 import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 //import java.util.stream.Collector;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
 
 /**
  * A Bloom filter for instances of {@code T}. A Bloom filter offers an approximate containment test
@@ -85,6 +96,13 @@ public final class BloomFilter<T>  {
         <T> boolean mightContain(
                 T object, Funnel<? super T> funnel, int numHashFunctions, RedisBitArray bits);
 
+        /**
+         * Returns the {@code numHashFunctions} bit indexes a user element maps to in a bit array of
+         * {@code bitSize} bits. These are exactly the bits {@link #put} sets and {@link #mightContain}
+         * queries, so callers can batch the bit operations of many elements.
+         */
+        <T> long[] bitIndexes(T object, Funnel<? super T> funnel, int numHashFunctions, long bitSize);
+
         /**
          * Identifier used to encode this strategy, when marshalled as part of a BloomFilter. Only
          * values in the [-128, 127] range are valid for the compact serial form. Non-negative values
@@ -95,6 +113,34 @@ public final class BloomFilter<T>  {
         int ordinal();
     }
 
+    /**
+     * How {@link #mightContain} answers when redis misses the deadline set by
+     * {@link #enableDeadline}.
+     */
+    public enum Fallback {
+        /**
+         * Answers from a local shadow of the puts made by this instance since deadlines were
+         * enabled, so elements put by other processes are reported absent.
+         */
+        SHADOW,
+
+        /**
+         * Answers {@code true}: elements are assumed present.
+         */
+        ASSUME_PRESENT,
+
+        /**
+         * Answers {@code false}: elements are assumed absent.
+         */
+        ASSUME_ABSENT
+    }
+
+    /**
+     * Number of elements hashed and sent to Redis in one pipeline by {@link #putAll(Iterable)} and
+     * {@link #mightContainAll(Iterable)}.
+     */
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+
     /**
      * The bit set of the BloomFilter (not necessarily power of 2!)
      */
@@ -115,6 +161,19 @@ public final class BloomFilter<T>  {
      */
     private final Strategy strategy;
 
+    /**
+     * Batches the async puts and lookups, or {@code null} unless they are enabled
+     */
+    @Nullable
+    private volatile RequestCoalescer coalescer;
+
+    /**
+     * Bounds the time {@link #put} and {@link #mightContain} wait for redis, or {@code null} unless
+     * deadlines are enabled
+     */
+    @Nullable
+    private volatile LatencyGuard guard;
+
     /**
      * Creates a BloomFilter.
      */
@@ -143,8 +202,30 @@ public final class BloomFilter<T>  {
      * Returns {@code true} if the element <i>might</i> have been put in this Bloom filter,
      * {@code false} if this is <i>definitely</i> not the case.
      */
-    public boolean mightContain(T object) {
-        return strategy.mightContain(object, funnel, numHashFunctions, bits);
+    public boolean mightContain(final T object) {
+        long start = System.nanoTime();
+        boolean contained;
+        try {
+            LatencyGuard current = guard;
+            if (current == null) {
+                contained = strategy.mightContain(object, funnel, numHashFunctions, bits);
+            } else {
+                // the guarded lookup still reads redis the way the strategy does
+                contained = current.mightContain(
+                        new Callable<Boolean>() {
+                            @Override
+                            public Boolean call() {
+                                return strategy.mightContain(object, funnel, numHashFunctions, bits);
+                            }
+                        },
+                        bitIndexes(object));
+            }
+        } catch (RuntimeException e) {
+            bits.metrics().errors.increment();
+            throw e;
+        }
+        bits.metrics().lookedUp(1, contained ? 1 : 0, System.nanoTime() - start);
+        return contained;
     }
 
     /**
@@ -166,11 +247,370 @@ public final class BloomFilter<T>  {
      * filter. If the bits haven't changed, this <i>might</i> be the first time {@code object} has
      * been added to the filter. Note that {@code put(t)} always returns the <i>opposite</i>
      * result to what {@code mightContain(t)} would have returned at the time it is called.
+     * All bits of the element are set in one atomic Redis call, so when several clients put the
+     * same element concurrently at most one of them sees {@code true}.
      * @since 12.0 (present in 11.0 with {@code void} return type})
      */
     @CanIgnoreReturnValue
     public boolean put(T object) {
-        return strategy.put(object, funnel, numHashFunctions, bits);
+        long start = System.nanoTime();
+        boolean changed;
+        try {
+            LatencyGuard current = guard;
+            changed = current != null
+                    ? current.put(bitIndexes(object))
+                    : strategy.put(object, funnel, numHashFunctions, bits);
+        } catch (RuntimeException e) {
+            bits.metrics().errors.increment();
+            throw e;
+        }
+        bits.metrics().put(1, System.nanoTime() - start);
+        return changed;
+    }
+
+    /**
+     * Asynchronous form of {@link #mightContain}: the lookup is sent to redis in one pipeline with
+     * the other async calls of the same batch, see {@link #enableAsync}.
+     *
+     * @throws IllegalStateException if async calls are not enabled
+     */
+    public ListenableFuture<Boolean> mightContainAsync(T object) {
+        return coalescer().submit(bitIndexes(object), false);
+    }
+
+    /**
+     * Asynchronous form of {@link #put}: the element is sent to redis in one pipeline with the other
+     * async calls of the same batch, see {@link #enableAsync}.
+     *
+     * @throws IllegalStateException if async calls are not enabled
+     */
+    @CanIgnoreReturnValue
+    public ListenableFuture<Boolean> putAsync(T object) {
+        return coalescer().submit(bitIndexes(object), true);
+    }
+
+    /**
+     * Returns the bit indexes {@code object} maps to in this filter.
+     */
+    long[] bitIndexes(T object) {
+        long start = System.nanoTime();
+        long[] bitIndexes = strategy.bitIndexes(object, funnel, numHashFunctions, bits.bitSize());
+        bits.metrics().hashLatency.record(System.nanoTime() - start);
+        return bitIndexes;
+    }
+
+    /**
+     * Returns the operation counters and latency histograms of this filter, since it was opened by
+     * this process.
+     */
+    public FilterMetrics metrics() {
+        return bits.metrics();
+    }
+
+    /**
+     * Returns true if elements map to the same bit indexes in this filter as in {@code that}.
+     */
+    boolean hashesLike(BloomFilter<?> that) {
+        return this.numHashFunctions == that.numHashFunctions
+                && this.bitSize() == that.bitSize()
+                && this.strategy.equals(that.strategy)
+                && this.funnel.equals(that.funnel);
+    }
+
+    RedisBitArray bits() {
+        return bits;
+    }
+
+    private RequestCoalescer coalescer() {
+        RequestCoalescer current = coalescer;
+        checkState(current != null, "async calls are not enabled");
+        return current;
+    }
+
+    /**
+     * Enables {@link #mightContainAsync} and {@link #putAsync}. Concurrent calls are gathered into
+     * batches, each sent to redis as one pipeline on {@code executor}, so a single round trip serves
+     * a whole batch and callers never block on a connection. A batch is sent as soon as it holds
+     * {@code maxBatchSize} calls, or {@code maxDelay} after its first call; that is the most latency
+     * the batching adds. Puts of a batch are sent before its lookups.
+     * <p>
+     * <p>Futures fail with the exception redis failed with; a failed put may or may not have set its
+     * bits.
+     *
+     * @param executor     sends the batches
+     * @param maxBatchSize the most calls sent in one pipeline; must be positive
+     * @param maxDelay     the most time a call waits for its batch to fill; must not be negative
+     * @param unit         the unit of {@code maxDelay}
+     */
+    public synchronized void enableAsync(ScheduledExecutorService executor, int maxBatchSize, long maxDelay, TimeUnit unit) {
+        checkNotNull(unit);
+        checkState(coalescer == null, "async calls are already enabled");
+        coalescer = new RequestCoalescer(bits, executor, maxBatchSize, maxDelay, unit);
+    }
+
+    /**
+     * Sends the calls still waiting for their batch, on the calling thread, and disables async
+     * calls. Does nothing if they are not enabled.
+     */
+    public synchronized void disableAsync() {
+        RequestCoalescer current = coalescer;
+        if (current != null) {
+            coalescer = null;
+            current.flush();
+        }
+    }
+
+    /**
+     * Bounds the time {@link #put} and {@link #mightContain} wait for redis to {@code deadline}.
+     * Redis calls then run on {@code executor}; a lookup not answered within {@code hedgeDelay} is
+     * sent again on another connection and the first reply wins. A lookup that misses its deadline,
+     * or fails, is answered according to {@code fallback}.
+     * <p>
+     * <p>A put that misses its deadline keeps its bits in a local buffer, merged into redis in the
+     * background once redis answers again, so lookups of this instance always see its own puts. It
+     * returns whether its bits were new to a local shadow filter that records every put, and
+     * answers the lookups of {@link Fallback#SHADOW}. The shadow takes {@code bitSize() / 8} bytes
+     * of heap, but at most 16MB: the bits of a larger filter are folded into it, which raises the
+     * false positive probability of the lookups it answers.
+     *
+     * @param executor   runs the redis calls; it needs a thread per concurrent call, plus one per
+     *                   hedged call
+     * @param deadline   the most time a call waits for redis; must be positive
+     * @param hedgeDelay the time after which a lookup is sent again; no lookup is hedged if it is
+     *                   not less than {@code deadline}
+     * @param unit       the unit of {@code deadline} and {@code hedgeDelay}
+     * @param fallback   how lookups that miss their deadline are answered
+     * @throws IllegalStateException if deadlines are already enabled
+     */
+    public synchronized void enableDeadline(
+            ScheduledExecutorService executor, long deadline, long hedgeDelay, TimeUnit unit, Fallback fallback) {
+        checkNotNull(unit);
+        checkState(guard == null, "deadlines are already enabled");
+        guard = new LatencyGuard(bits, executor, deadline, hedgeDelay, unit, fallback);
+    }
+
+    /**
+     * Makes calls wait for redis again, after merging the bits of the puts that missed their
+     * deadline into redis. Does nothing if deadlines are not enabled.
+     *
+     * @throws RuntimeException the exception of redis if that merge fails; deadlines then stay
+     *                          enabled as they were, background merges included, so no put is lost
+     */
+    public synchronized void disableDeadline() {
+        LatencyGuard current = guard;
+        if (current != null) {
+            guard = null;
+            try {
+                current.close();
+            } catch (RuntimeException e) {
+                guard = current;
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Puts all the given elements into this {@code BloomFilter}, using batches of
+     * {@link #DEFAULT_BATCH_SIZE} elements.
+     *
+     * @see #putAll(Iterable, int)
+     */
+    @CanIgnoreReturnValue
+    public BitSet putAll(Iterable<? extends T> objects) {
+        return putAll(objects, DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * Puts all the given elements into this {@code BloomFilter}. Elements are hashed a batch at a
+     * time and the bit operations of each batch are sent to Redis as one pipeline, so the cost is
+     * one round trip per {@code batchSize} elements instead of one per element.
+     *
+     * @return a {@code BitSet} whose bit {@code i} is set if the {@code i}-th element changed the
+     * filter's bits, i.e. what {@link #put(Object)} would have returned for it
+     */
+    @CanIgnoreReturnValue
+    public BitSet putAll(Iterable<? extends T> objects, int batchSize) {
+        checkNotNull(objects);
+        checkArgument(batchSize > 0, "batchSize (%s) must be > 0", batchSize);
+        BitSet changed = new BitSet();
+        List<long[]> batch = new ArrayList<long[]>(batchSize);
+        int offset = 0;
+        for (T object : objects) {
+            batch.add(bitIndexes(object));
+            if (batch.size() == batchSize) {
+                or(changed, putBatch(batch), offset);
+                offset += batch.size();
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            or(changed, putBatch(batch), offset);
+        }
+        return changed;
+    }
+
+    /**
+     * Queries all the given elements, using batches of {@link #DEFAULT_BATCH_SIZE} elements.
+     *
+     * @see #mightContainAll(Iterable, int)
+     */
+    public BitSet mightContainAll(Iterable<? extends T> objects) {
+        return mightContainAll(objects, DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * Queries all the given elements, sending the bit lookups of every {@code batchSize} elements
+     * to Redis as one pipeline.
+     *
+     * @return a {@code BitSet} whose bit {@code i} is set if the {@code i}-th element <i>might</i>
+     * have been put in this Bloom filter
+     */
+    public BitSet mightContainAll(Iterable<? extends T> objects, int batchSize) {
+        checkNotNull(objects);
+        checkArgument(batchSize > 0, "batchSize (%s) must be > 0", batchSize);
+        BitSet contained = new BitSet();
+        List<long[]> batch = new ArrayList<long[]>(batchSize);
+        int offset = 0;
+        for (T object : objects) {
+            batch.add(bitIndexes(object));
+            if (batch.size() == batchSize) {
+                or(contained, lookupBatch(batch), offset);
+                offset += batch.size();
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            or(contained, lookupBatch(batch), offset);
+        }
+        return contained;
+    }
+
+    private BitSet putBatch(List<long[]> batch) {
+        long start = System.nanoTime();
+        BitSet changed;
+        try {
+            changed = bits.setAll(batch);
+        } catch (RuntimeException e) {
+            bits.metrics().errors.increment();
+            throw e;
+        }
+        bits.metrics().put(batch.size(), System.nanoTime() - start);
+        return changed;
+    }
+
+    private BitSet lookupBatch(List<long[]> batch) {
+        long start = System.nanoTime();
+        BitSet contained;
+        try {
+            contained = bits.getAll(batch);
+        } catch (RuntimeException e) {
+            bits.metrics().errors.increment();
+            throw e;
+        }
+        bits.metrics().lookedUp(batch.size(), contained.cardinality(), System.nanoTime() - start);
+        return contained;
+    }
+
+    /**
+     * Sets in {@code target} every bit set in {@code batch}, shifted by {@code offset}.
+     */
+    private static void or(BitSet target, BitSet batch, int offset) {
+        for (int i = batch.nextSetBit(0); i >= 0; i = batch.nextSetBit(i + 1)) {
+            target.set(offset + i);
+        }
+    }
+
+    /**
+     * Switches this filter to write-behind mode: {@link #put} only sets bits in a local lock-free
+     * buffer, and every {@code flushInterval} the buffered bits are ORed into redis as runs of
+     * 64-bit words. Puts of the same bits within one interval are coalesced.
+     * <p>
+     * <p>Puts become visible to other processes only after the next flush, while this instance sees
+     * them at once. {@code put} then returns whether any bit was not yet buffered, so it may return
+     * {@code true} for an element that is already in redis. Statistics such as
+     * {@link #expectedFpp()} ignore buffered bits.
+     *
+     * @param executor      runs the periodic flushes
+     * @param flushInterval the delay between two flushes; must be positive
+     * @param unit          the unit of {@code flushInterval}
+     * @throws IllegalStateException if write-behind is already enabled
+     */
+    public void enableWriteBehind(ScheduledExecutorService executor, long flushInterval, TimeUnit unit) {
+        checkNotNull(executor);
+        checkNotNull(unit);
+        bits.enableWriteBehind(executor, flushInterval, unit);
+    }
+
+    /**
+     * Flushes the buffered bits and leaves write-behind mode. Does nothing if write-behind is not
+     * enabled.
+     */
+    public void disableWriteBehind() {
+        bits.disableWriteBehind();
+    }
+
+    /**
+     * Merges the bits buffered in write-behind mode into redis now, e.g. before shutting down.
+     */
+    public void flush() {
+        bits.flush();
+    }
+
+    /**
+     * Caches the bits of this filter known to be set in redis, in chunks of 32K bits using at most
+     * {@code maxBytes} of local memory, least recently used chunks being evicted first. Bits only
+     * ever go from 0 to 1, so a cached bit never goes stale: {@link #mightContain} answers from
+     * the cache when all the bits of an element are cached, and asks redis only for the others.
+     * Hot elements that are checked over and over then cost no round trip at all.
+     * <p>
+     * <p>The cache must not be used on a filter whose redis keys may be deleted or cleared while it
+     * is open. Enabling it again replaces the cache with an empty one.
+     *
+     * @param maxBytes the memory bound of the cache, at least 4KB
+     */
+    public void enableNearCache(long maxBytes) {
+        bits.enableNearCache(maxBytes);
+    }
+
+    /**
+     * Drops the near cache; every lookup goes to redis again.
+     */
+    public void disableNearCache() {
+        bits.disableNearCache();
+    }
+
+    /**
+     * Keeps a full copy of this filter's bitmap in local memory and answers {@link #mightContain}
+     * from it, without any round trip to redis. {@link #put} still writes through to redis and sets
+     * the bits in the copy as well.
+     * <p>
+     * <p>The bitmap is first downloaded in 1MB GETRANGE chunks fetched in parallel on
+     * {@code executor}; this call blocks until it is loaded. Every {@code refreshInterval} the
+     * segments whose count of set bits changed are then downloaded again and merged into the copy,
+     * so elements put by other processes may be reported absent for up to one refresh interval plus
+     * the download time. Refreshes are spaced by at least the time the whole bitmap takes to
+     * download at 64MB/s, e.g. 8s for a 512MB bitmap, so that they never keep redis busy with
+     * GETRANGEs. The copy takes {@code bitSize() / 8} bytes of heap and is limited to 2^37 bits.
+     *
+     * @param executor        downloads the chunks and runs the periodic refreshes; this method must
+     *                        not be called on one of its threads
+     * @param refreshInterval the delay between two refreshes; must be positive, and is raised to
+     *                        the floor above
+     * @param unit            the unit of {@code refreshInterval}
+     * @throws IllegalStateException if the replica is already enabled
+     */
+    public void enableReplica(ScheduledExecutorService executor, long refreshInterval, TimeUnit unit) {
+        checkNotNull(executor);
+        checkNotNull(unit);
+        bits.enableReplica(executor, refreshInterval, unit);
+    }
+
+    /**
+     * Drops the local copy of the bitmap; lookups go to redis again. Does nothing if the replica is
+     * not enabled.
+     */
+    public void disableReplica() {
+        bits.disableReplica();
     }
 
     /**
@@ -243,40 +683,115 @@ public final class BloomFilter<T>  {
                 && (this.funnel.equals(that.funnel));
     }
 
-    //    /**
-//     * Combines this Bloom filter with another Bloom filter by performing a bitwise OR of the
-//     * underlying data. The mutations happen to <b>this</b> instance. Callers must ensure the Bloom
-//     * filters are appropriately sized to avoid saturating them.
-//     *
-//     * @param that The Bloom filter to combine this Bloom filter with. It is not mutated.
-//     * @throws IllegalArgumentException if {@code isCompatible(that) == false}
-//     * @since 15.0
-//     */
-//  public void putAll(BloomFilter<T> that) {
-//    checkNotNull(that);
-//    checkArgument(this != that, "Cannot combine a BloomFilter with itself.");
-//    checkArgument(
-//        this.numHashFunctions == that.numHashFunctions,
-//        "BloomFilters must have the same number of hash functions (%s != %s)",
-//        this.numHashFunctions,
-//        that.numHashFunctions);
-//    checkArgument(
-//        this.bitSize() == that.bitSize(),
-//        "BloomFilters must have the same size underlying bit arrays (%s != %s)",
-//        this.bitSize(),
-//        that.bitSize());
-//    checkArgument(
-//        this.strategy.equals(that.strategy),
-//        "BloomFilters must have equal strategies (%s != %s)",
-//        this.strategy,
-//        that.strategy);
-//    checkArgument(
-//        this.funnel.equals(that.funnel),
-//        "BloomFilters must have equal funnels (%s != %s)",
-//        this.funnel,
-//        that.funnel);
-//    this.bits.putAll(that.bits);
-//  }
+    /**
+     * Combines this Bloom filter with another Bloom filter by performing a bitwise OR of the
+     * underlying data. The mutations happen to <b>this</b> instance. Callers must ensure the Bloom
+     * filters are appropriately sized to avoid saturating them.
+     * <p>
+     * <p>The OR runs inside redis with one BITOP per segment, so no bits travel to the client. BITOP
+     * needs all its keys on one node, hence both filters must live on the same redis, reached
+     * through the same {@link RedisConnectionProvider} instance. On a cluster
+     * every segment must also share its slot with the same segment of the other filter, which
+     * filters spread over a cluster do not; such filters are rejected up front rather than failing
+     * with CROSSSLOT halfway through.
+     *
+     * @param that The Bloom filter to combine this Bloom filter with. It is not mutated.
+     * @throws IllegalArgumentException if {@code isCompatible(that) == false}, if the filters have
+     *                                  distinct connection providers, or if they are on a cluster
+     *                                  and a segment does not share its slot
+     * @since 15.0
+     */
+    public void putAll(BloomFilter<T> that) {
+        checkCompatible(that, null, null);
+        this.bits.union(that.bits, this.bits);
+    }
+
+    /**
+     * Stores the bitwise OR of this Bloom filter and {@code that} in the filter {@code actKey} /
+     * {@code statType}, created with the same geometry on the same redis, and returns it. Neither
+     * input is mutated. An existing destination filter of the same geometry is overwritten.
+     *
+     * @throws IllegalArgumentException if {@code isCompatible(that) == false}, if the filters have
+     *                                  distinct connection providers, if a segment of the three
+     *                                  filters does not share its cluster slot, or if the
+     *                                  destination exists with another geometry
+     * @see #putAll(BloomFilter)
+     */
+    public BloomFilter<T> putAll(BloomFilter<T> that, String actKey, String statType) {
+        checkCompatible(that, checkNotNull(actKey), checkNotNull(statType));
+        RedisBitArray destination = bits.createLike(actKey, statType);
+        this.bits.union(that.bits, destination);
+        return new BloomFilter<T>(destination, numHashFunctions, funnel, strategy);
+    }
+
+    /**
+     * Intersects this Bloom filter with another Bloom filter by performing a bitwise AND of the
+     * underlying data, inside redis as for {@link #putAll(BloomFilter)}. The mutations happen to
+     * <b>this</b> instance, which then might contain the elements put in both filters; its false
+     * positive probability is at most that of either filter.
+     *
+     * @param that The Bloom filter to intersect this Bloom filter with. It is not mutated.
+     * @throws IllegalArgumentException if {@code isCompatible(that) == false}, if the filters have
+     *                                  distinct connection providers, or if they are on a cluster
+     *                                  and a segment does not share its slot
+     * @throws IllegalStateException    if this filter has a near cache, a replica or deadlines
+     *                                  enabled, which would keep the cleared bits
+     */
+    public synchronized void intersect(BloomFilter<T> that) {
+        checkCompatible(that, null, null);
+        // the repair buffer and shadow of a guard would keep answering, and later restore, the cleared bits
+        checkState(guard == null, "cannot clear bits of a filter with deadlines enabled");
+        this.bits.intersect(that.bits, this.bits);
+    }
+
+    /**
+     * Stores the bitwise AND of this Bloom filter and {@code that} in the filter {@code actKey} /
+     * {@code statType}, created with the same geometry on the same redis, and returns it. Neither
+     * input is mutated. An existing destination filter of the same geometry is overwritten.
+     *
+     * @throws IllegalArgumentException if {@code isCompatible(that) == false}, if the filters have
+     *                                  distinct connection providers, if a segment of the three
+     *                                  filters does not share its cluster slot, or if the
+     *                                  destination exists with another geometry
+     * @see #intersect(BloomFilter)
+     */
+    public BloomFilter<T> intersect(BloomFilter<T> that, String actKey, String statType) {
+        checkCompatible(that, checkNotNull(actKey), checkNotNull(statType));
+        RedisBitArray destination = bits.createLike(actKey, statType);
+        this.bits.intersect(that.bits, destination);
+        return new BloomFilter<T>(destination, numHashFunctions, funnel, strategy);
+    }
+
+    /**
+     * Checks that {@code that} can be combined with this filter into the filter {@code actKey} /
+     * {@code statType}, or into this filter if {@code actKey} is {@code null}.
+     */
+    private void checkCompatible(BloomFilter<T> that, @Nullable String actKey, @Nullable String statType) {
+        checkNotNull(that);
+        checkArgument(this != that, "Cannot combine a BloomFilter with itself.");
+        checkArgument(
+                this.numHashFunctions == that.numHashFunctions,
+                "BloomFilters must have the same number of hash functions (%s != %s)",
+                this.numHashFunctions,
+                that.numHashFunctions);
+        checkArgument(
+                this.bitSize() == that.bitSize(),
+                "BloomFilters must have the same size underlying bit arrays (%s != %s)",
+                this.bitSize(),
+                that.bitSize());
+        checkArgument(
+                this.strategy.equals(that.strategy),
+                "BloomFilters must have equal strategies (%s != %s)",
+                this.strategy,
+                that.strategy);
+        checkArgument(
+                this.funnel.equals(that.funnel),
+                "BloomFilters must have equal funnels (%s != %s)",
+                this.funnel,
+                that.funnel);
+        this.bits.checkBitop(that.bits, actKey, statType);
+    }
+
     @Override
     public boolean equals(@Nullable Object object) {
         if (object == this) {
@@ -407,22 +922,137 @@ public final class BloomFilter<T>  {
      *                           {@code BloomFilter}; must be positive
      * @param fpp                the desired false positive probability (must be positive and less than 1.0)
      * @return a {@code BloomFilter}
+     * @throws IllegalArgumentException if a filter of the same act and stat type already exists with
+     *                                  a different geometry, or was written without a header
      * @since 19.0
      */
     public static <T> BloomFilter<T> create(
             Funnel<? super T> funnel, long expectedInsertions, double fpp, String actKey, String statType) {
-        return create(funnel, expectedInsertions, fpp, BloomFilterStrategies.MURMUR128_MITZ_64, actKey, statType);
+        return create(funnel, expectedInsertions, fpp, JedisPoolConnectionProvider.localhost(), actKey, statType);
+    }
+
+    /**
+     * Creates a {@link BloomFilter} with the expected number of insertions and
+     * expected false positive probability, stored in the redis reached through {@code connections}.
+     * <p>
+     * <p>The filter borrows a connection per operation, so it can be shared by as many threads as
+     * {@code connections} can serve concurrently.
+     *
+     * @param funnel             the funnel of T's that the constructed {@code BloomFilter} will use
+     * @param expectedInsertions the number of expected insertions to the constructed
+     *                           {@code BloomFilter}; must be positive
+     * @param fpp                the desired false positive probability (must be positive and less than 1.0)
+     * @param connections        the source of redis connections
+     * @return a {@code BloomFilter}
+     * @throws IllegalArgumentException if a filter of the same act and stat type already exists with
+     *                                  a different geometry, or was written without a header
+     */
+    public static <T> BloomFilter<T> create(
+            Funnel<? super T> funnel,
+            long expectedInsertions,
+            double fpp,
+            RedisConnectionProvider connections,
+            String actKey,
+            String statType) {
+        return create(funnel, expectedInsertions, fpp, connections, 0, false, actKey, statType);
+    }
+
+    /**
+     * Creates a {@link BloomFilter} whose bits are split over {@code segments} redis keys. Each key
+     * holds at most 2^32 bits, so segmenting allows filters beyond 512MB, and spreads the filter's
+     * load over several nodes of a redis cluster.
+     * <p>
+     * <p>Bits of an element may fall in different segments; its bits are then set one segment at a
+     * time, and concurrent {@code put}s of the same element may both return {@code true}.
+     *
+     * @param funnel             the funnel of T's that the constructed {@code BloomFilter} will use
+     * @param expectedInsertions the number of expected insertions to the constructed
+     *                           {@code BloomFilter}; must be positive
+     * @param fpp                the desired false positive probability (must be positive and less than 1.0)
+     * @param connections        the source of redis connections, e.g. a
+     *                           {@link JedisClusterConnectionProvider}
+     * @param segments           the number of segment keys, or 0 for the least number that fits
+     * @param hashTags           whether to give the segment keys hash tags that place them in evenly
+     *                           spread cluster slots, rather than wherever their names hash
+     * @return a {@code BloomFilter}
+     * @throws IllegalArgumentException if a filter of the same act and stat type already exists with
+     *                                  a different geometry or without a header, or the segments
+     *                                  cannot hold the filter
+     */
+    public static <T> BloomFilter<T> create(
+            Funnel<? super T> funnel,
+            long expectedInsertions,
+            double fpp,
+            RedisConnectionProvider connections,
+            int segments,
+            boolean hashTags,
+            String actKey,
+            String statType) {
+        return create(
+                funnel,
+                expectedInsertions,
+                fpp,
+                BloomFilterStrategies.MURMUR128_MITZ_64,
+                connections,
+                segments,
+                hashTags,
+                actKey,
+                statType);
+    }
+
+    /**
+     * Creates a {@link BloomFilter} that keeps all the bits of an element within one block of 512
+     * bits, so {@link #mightContain} reads one 64 byte range from redis instead of testing each bit.
+     * This suits read-heavy filters; for the same size, the false positive probability is slightly
+     * higher than the requested {@code fpp}.
+     *
+     * @param funnel             the funnel of T's that the constructed {@code BloomFilter} will use
+     * @param expectedInsertions the number of expected insertions to the constructed
+     *                           {@code BloomFilter}; must be positive
+     * @param fpp                the desired false positive probability (must be positive and less than 1.0)
+     * @param connections        the source of redis connections
+     * @return a {@code BloomFilter}
+     * @throws IllegalArgumentException if a filter of the same act and stat type already exists with
+     *                                  a different geometry, or was written without a header
+     */
+    public static <T> BloomFilter<T> createBlocked(
+            Funnel<? super T> funnel,
+            long expectedInsertions,
+            double fpp,
+            RedisConnectionProvider connections,
+            String actKey,
+            String statType) {
+        return create(
+                funnel,
+                expectedInsertions,
+                fpp,
+                BloomFilterStrategies.MURMUR128_BLOCKED_512,
+                connections,
+                0,
+                false,
+                actKey,
+                statType);
     }
 
     @VisibleForTesting
     static <T> BloomFilter<T> create(
-            Funnel<? super T> funnel, long expectedInsertions, double fpp, Strategy strategy, String actKey, String statType) {
+            Funnel<? super T> funnel,
+            long expectedInsertions,
+            double fpp,
+            Strategy strategy,
+            RedisConnectionProvider connections,
+            int segments,
+            boolean hashTags,
+            String actKey,
+            String statType) {
         checkNotNull(funnel);
         checkArgument(
                 expectedInsertions >= 0, "Expected insertions (%s) must be >= 0", expectedInsertions);
         checkArgument(fpp > 0.0, "False positive probability (%s) must be > 0.0", fpp);
         checkArgument(fpp < 1.0, "False positive probability (%s) must be < 1.0", fpp);
         checkNotNull(strategy);
+        checkNotNull(connections);
+        checkArgument(segments >= 0, "segments (%s) must be >= 0", segments);
 
         if (expectedInsertions == 0) {
             expectedInsertions = 1;
@@ -435,12 +1065,93 @@ public final class BloomFilter<T>  {
         long numBits = optimalNumOfBits(expectedInsertions, fpp);
         int numHashFunctions = optimalNumOfHashFunctions(expectedInsertions, numBits);
         try {
-            return new BloomFilter<T>(new RedisBitArray(numBits, actKey, statType), numHashFunctions, funnel, strategy);
+            long bitSize = RedisBitArray.redisBitSize(numBits);
+            FilterHeader requested = new FilterHeader(
+                    bitSize,
+                    numHashFunctions,
+                    strategy.ordinal(),
+                    FilterHeader.funnelId(funnel),
+                    segments == 0 ? RedisBitArray.minSegments(bitSize) : segments,
+                    hashTags);
+            // validates the segmentation before anything is written
+            RedisBitArray.segmentBitSize(bitSize, requested.segments());
+            FilterHeader stored = RedisBitArray.createHeader(requested, connections, actKey, statType);
+            checkArgument(
+                    stored.equals(requested),
+                    "BloomFilter of act %s statType %s already exists as %s, not %s",
+                    actKey,
+                    statType,
+                    stored,
+                    requested);
+            RedisBitArray bits = new RedisBitArray(stored, connections, actKey, statType);
+            bits.preallocate();
+            return new BloomFilter<T>(bits, numHashFunctions, funnel, strategy);
         } catch (IllegalArgumentException e) {
             throw new IllegalArgumentException("Could not create BloomFilter of " + numBits + " bits", e);
         }
     }
 
+    /**
+     * Opens an existing {@link BloomFilter}, as created by any process with one of the
+     * {@code create} methods. Its geometry is read once from the header stored next to the bitmap,
+     * so the filter is not resized or rehashed.
+     * <p>
+     * <p>The funnel must be the one the filter was created with; funnels are matched by their
+     * {@code toString()}, so they should be enums or come from {@link Funnels}.
+     *
+     * @param funnel   the funnel of T's the filter was created with
+     * @param actKey   the activity of the filter
+     * @param statType the stat type of the filter
+     * @return a {@code BloomFilter}
+     * @throws IllegalArgumentException if no such filter exists, or it was created with another
+     *                                  funnel or an unknown strategy
+     */
+    public static <T> BloomFilter<T> open(Funnel<? super T> funnel, String actKey, String statType) {
+        return open(funnel, JedisPoolConnectionProvider.localhost(), actKey, statType);
+    }
+
+    /**
+     * Opens an existing {@link BloomFilter} stored in the redis reached through {@code connections}.
+     *
+     * @see #open(Funnel, String, String)
+     */
+    public static <T> BloomFilter<T> open(
+            Funnel<? super T> funnel, RedisConnectionProvider connections, String actKey, String statType) {
+        checkNotNull(funnel);
+        checkNotNull(connections);
+        FilterHeader header = RedisBitArray.readHeader(connections, actKey, statType);
+        checkArgument(header != null, "No BloomFilter exists for act %s statType %s", actKey, statType);
+        return open(funnel, connections, header, actKey, statType);
+    }
+
+    /**
+     * Opens the {@link BloomFilter} described by {@code header}, a header already read from the
+     * redis reached through {@code connections}.
+     */
+    static <T> BloomFilter<T> open(
+            Funnel<? super T> funnel,
+            RedisConnectionProvider connections,
+            FilterHeader header,
+            String actKey,
+            String statType) {
+        String funnelId = FilterHeader.funnelId(funnel);
+        checkArgument(
+                header.funnelId().equals(funnelId),
+                "BloomFilter was created with funnel %s, not %s",
+                header.funnelId(),
+                funnelId);
+        int strategyOrdinal = header.strategyOrdinal();
+        checkArgument(
+                strategyOrdinal >= 0 && strategyOrdinal < BloomFilterStrategies.values().length,
+                "Unknown strategy ordinal %s",
+                strategyOrdinal);
+        return new BloomFilter<T>(
+                new RedisBitArray(header, connections, actKey, statType),
+                header.numHashFunctions(),
+                funnel,
+                BloomFilterStrategies.values()[strategyOrdinal]);
+    }
+
     /**
      * Creates a {@link BloomFilter} with the expected number of insertions and a
      * default expected false positive probability of 3%.
@@ -509,8 +1220,7 @@ public final class BloomFilter<T>  {
      * @param n expected insertions (must be positive)
      * @param m total number of bits in Bloom filter (must be positive)
      */
-    @VisibleForTesting
-    static int optimalNumOfHashFunctions(long n, long m) {
+    public static int optimalNumOfHashFunctions(long n, long m) {
         // (m / n) * log(2), but avoid truncation due to division!
         return Math.max(1, (int) Math.round((double) m / n * Math.log(2)));
     }
@@ -524,8 +1234,7 @@ public final class BloomFilter<T>  {
      * @param n expected insertions (must be positive)
      * @param p false positive rate (must be 0 < p < 1)
      */
-    @VisibleForTesting
-    static long optimalNumOfBits(long n, double p) {
+    public static long optimalNumOfBits(long n, double p) {
         if (p == 0) {
             p = Double.MIN_VALUE;
         }
@@ -14,17 +14,47 @@
 
 package com.bitmap.ResidImpl.hash;
 
+import com.bitmap.ResidImpl.JedisClusterConnectionProvider;
+import com.bitmap.ResidImpl.RedisConnectionProvider;
 import com.bitmap.ResidImpl.hash.BloomFilterStrategies.RedisBitArray;
 
+import com.google.common.base.Throwables;
 import com.google.common.math.LongMath;
 import com.google.common.primitives.Ints;
 import com.google.common.primitives.Longs;
+import com.google.common.util.concurrent.Uninterruptibles;
+import redis.clients.jedis.BitOP;
 import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.exceptions.JedisNoScriptException;
+import redis.clients.util.JedisClusterCRC16;
+import redis.clients.util.SafeEncoder;
 
+import javax.annotation.Nullable;
+import java.io.ByteArrayOutputStream;
 import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLongArray;
 
 import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
 
 /**
  * Collections of strategies of generating the k * log(M) bits required for an element to be mapped
@@ -48,42 +78,32 @@ enum BloomFilterStrategies implements BloomFilter.Strategy {
         @Override
         public <T> boolean put(
                 T object, Funnel<? super T> funnel, int numHashFunctions, RedisBitArray bits) {
-            long bitSize = bits.bitSize();
-            long hash64 = Hashing.murmur3_128().hashObject(object, funnel).asLong();
-            int hash1 = (int) hash64;
-            int hash2 = (int) (hash64 >>> 32);
-
-            boolean bitsChanged = false;
-            for (int i = 1; i <= numHashFunctions; i++) {
-                int combinedHash = hash1 + (i * hash2);
-                // Flip all the bits if it's negative (guaranteed positive number)
-                if (combinedHash < 0) {
-                    combinedHash = ~combinedHash;
-                }
-                bitsChanged |= bits.set(combinedHash % bitSize);
-            }
-            return bitsChanged;
+            return bits.setAll(hash(object, funnel, numHashFunctions, bits));
         }
 
         @Override
         public <T> boolean mightContain(
                 T object, Funnel<? super T> funnel, int numHashFunctions, RedisBitArray bits) {
-            long bitSize = bits.bitSize();
+            return bits.getAll(hash(object, funnel, numHashFunctions, bits));
+        }
+
+        @Override
+        public <T> long[] bitIndexes(
+                T object, Funnel<? super T> funnel, int numHashFunctions, long bitSize) {
             long hash64 = Hashing.murmur3_128().hashObject(object, funnel).asLong();
             int hash1 = (int) hash64;
             int hash2 = (int) (hash64 >>> 32);
 
+            long[] bitIndexes = new long[numHashFunctions];
             for (int i = 1; i <= numHashFunctions; i++) {
                 int combinedHash = hash1 + (i * hash2);
                 // Flip all the bits if it's negative (guaranteed positive number)
                 if (combinedHash < 0) {
                     combinedHash = ~combinedHash;
                 }
-                if (!bits.get(combinedHash % bitSize)) {
-                    return false;
-                }
+                bitIndexes[i - 1] = combinedHash % bitSize;
             }
-            return true;
+            return bitIndexes;
         }
     },
     /**
@@ -96,51 +116,121 @@ enum BloomFilterStrategies implements BloomFilter.Strategy {
         @Override
         public <T> boolean put(
                 T object, Funnel<? super T> funnel, int numHashFunctions, RedisBitArray bits) {
-            long bitSize = bits.bitSize();
+            return bits.setAll(hash(object, funnel, numHashFunctions, bits));
+        }
+
+        @Override
+        public <T> boolean mightContain(
+                T object, Funnel<? super T> funnel, int numHashFunctions, RedisBitArray bits) {
+            return bits.getAll(hash(object, funnel, numHashFunctions, bits));
+        }
+
+        @Override
+        public <T> long[] bitIndexes(
+                T object, Funnel<? super T> funnel, int numHashFunctions, long bitSize) {
             byte[] bytes = Hashing.murmur3_128().hashObject(object, funnel).getBytesInternal();
             long hash1 = lowerEight(bytes);
             long hash2 = upperEight(bytes);
 
-            boolean bitsChanged = false;
+            long[] bitIndexes = new long[numHashFunctions];
             long combinedHash = hash1;
             for (int i = 0; i < numHashFunctions; i++) {
                 // Make the combined hash positive and indexable
-                bitsChanged |= bits.set((combinedHash & Long.MAX_VALUE) % bitSize);
+                bitIndexes[i] = (combinedHash & Long.MAX_VALUE) % bitSize;
                 combinedHash += hash2;
             }
-            return bitsChanged;
+            return bitIndexes;
+        }
+    },
+    /**
+     * This strategy places all the bits of an element inside one block of {@link #BLOCK_BITS} bits,
+     * so a lookup reads a single 64 byte range with GETRANGE instead of k scattered bits (see
+     * "Cache-, Hash- and Space-Efficient Bloom Filters" by Felix Putze, Peter Sanders and Johannes
+     * Singler). The lower half of the murmur3_128 hash picks the block, the upper half the bits
+     * inside it. The price is a slightly higher false positive probability than MURMUR128_MITZ_64
+     * for the same number of bits.
+     */
+    MURMUR128_BLOCKED_512() {
+        @Override
+        public <T> boolean put(
+                T object, Funnel<? super T> funnel, int numHashFunctions, RedisBitArray bits) {
+            return bits.setAll(hash(object, funnel, numHashFunctions, bits));
         }
 
         @Override
         public <T> boolean mightContain(
                 T object, Funnel<? super T> funnel, int numHashFunctions, RedisBitArray bits) {
-            long bitSize = bits.bitSize();
-            byte[] bytes = Hashing.murmur3_128().hashObject(object, funnel).getBytesInternal();
-            long hash1 = lowerEight(bytes);
-            long hash2 = upperEight(bytes);
+            long blockBits = blockBits(bits.bitSize());
+            long[] bitIndexes = hash(object, funnel, numHashFunctions, bits);
+            if (bits.knownSet(bitIndexes)) {
+                return true;
+            }
+            long blockStart = bitIndexes[0] - bitIndexes[0] % blockBits;
 
-            long combinedHash = hash1;
-            for (int i = 0; i < numHashFunctions; i++) {
-                // Make the combined hash positive and indexable
-                if (!bits.get((combinedHash & Long.MAX_VALUE) % bitSize)) {
+            byte[] block = bits.getBytes(blockStart, (int) (blockBits / Byte.SIZE));
+            for (long bitIndex : bitIndexes) {
+                int offset = (int) (bitIndex - blockStart);
+                // redis numbers the bits of a byte from the most significant one
+                if ((block[offset >>> 3] & (0x80 >>> (offset & 7))) == 0) {
                     return false;
                 }
-                combinedHash += hash2;
             }
             return true;
         }
 
-        private /* static */ long lowerEight(byte[] bytes) {
-            return Longs.fromBytes(
-                    bytes[7], bytes[6], bytes[5], bytes[4], bytes[3], bytes[2], bytes[1], bytes[0]);
+        @Override
+        public <T> long[] bitIndexes(
+                T object, Funnel<? super T> funnel, int numHashFunctions, long bitSize) {
+            byte[] bytes = Hashing.murmur3_128().hashObject(object, funnel).getBytesInternal();
+            long hash1 = lowerEight(bytes);
+            long hash2 = upperEight(bytes);
+
+            long blockBits = blockBits(bitSize);
+            long blockStart = ((hash1 & Long.MAX_VALUE) % (bitSize / blockBits)) * blockBits;
+
+            long[] bitIndexes = new long[numHashFunctions];
+            int combinedHash = (int) hash2;
+            int step = (int) (hash2 >>> 32);
+            for (int i = 0; i < numHashFunctions; i++) {
+                bitIndexes[i] = blockStart + (combinedHash & Integer.MAX_VALUE) % blockBits;
+                combinedHash += step;
+            }
+            return bitIndexes;
         }
 
-        private /* static */ long upperEight(byte[] bytes) {
-            return Longs.fromBytes(
-                    bytes[15], bytes[14], bytes[13], bytes[12], bytes[11], bytes[10], bytes[9], bytes[8]);
+        /**
+         * Filters smaller than a block use a single block spanning all their bits.
+         */
+        private /* static */ long blockBits(long bitSize) {
+            return Math.min(BLOCK_BITS, bitSize);
         }
     };
 
+    /**
+     * Returns the bit indexes of {@code object} in {@code bits}, recording the time spent hashing.
+     */
+    <T> long[] hash(T object, Funnel<? super T> funnel, int numHashFunctions, RedisBitArray bits) {
+        long start = System.nanoTime();
+        long[] bitIndexes = bitIndexes(object, funnel, numHashFunctions, bits.bitSize());
+        bits.metrics().hashLatency.record(System.nanoTime() - start);
+        return bitIndexes;
+    }
+
+    /**
+     * Number of bits in the blocks of {@link #MURMUR128_BLOCKED_512}, i.e. a 64 byte cache line.
+     */
+    static final int BLOCK_BITS = 512;
+
+    private static long lowerEight(byte[] bytes) {
+        return Longs.fromBytes(
+                bytes[7], bytes[6], bytes[5], bytes[4], bytes[3], bytes[2], bytes[1], bytes[0]);
+    }
+
+    private static long upperEight(byte[] bytes) {
+        return Longs.fromBytes(
+                bytes[15], bytes[14], bytes[13], bytes[12], bytes[11], bytes[10], bytes[9], bytes[8]);
+    }
+
     /**
      * Models a lock-free array of bits.
      * <p>
@@ -152,23 +242,389 @@ enum BloomFilterStrategies implements BloomFilter.Strategy {
 //    final AtomicLongArray data;
 //    private final LongAddable bitCount;
 
+        /**
+         * A redis string is at most 512MB, i.e. 2^32 bits.
+         */
+        static final long MAX_BIT_SIZE = 1L << 32;
+
+        /**
+         * Upper bound on the number of segment keys of one filter (512GB of bits).
+         */
+        static final int MAX_SEGMENTS = 1024;
+
+        /**
+         * Number of hash slots of a redis cluster.
+         */
+        private static final int CLUSTER_SLOTS = 16384;
+
+        /**
+         * Creates the header unless it already exists, then replies the stored header. It runs as a
+         * script so that concurrent creators of the same filter agree on a single geometry, and only
+         * touches the header key so that it also works on a redis cluster.
+         */
+        static final RedisScript CREATE_HEADER_SCRIPT = new RedisScript(
+                "if redis.call('HSETNX', KEYS[1], 'bitSize', ARGV[1]) == 1 then\n"
+                        + "  redis.call('HMSET', KEYS[1], 'numHashFunctions', ARGV[2], 'strategy', ARGV[3],"
+                        + " 'funnel', ARGV[4], 'segments', ARGV[5], 'hashTags', ARGV[6])\n"
+                        + "end\n"
+                        + "return redis.call('HGETALL', KEYS[1])");
+
+        /**
+         * Allocates a segment (KEYS[1]) to its full size unless it is already that long. A segment
+         * shorter than its size has its last bit cleared, so unlike a bare SETBIT this never clears a
+         * bit set by a concurrent put. A segment that did not exist has no bit set, so its count
+         * (KEYS[2]) starts at 0.
+         */
+        static final RedisScript PREALLOCATE_SCRIPT = new RedisScript(
+                "local length = redis.call('STRLEN', KEYS[1])\n"
+                        + "if length == 0 then\n"
+                        + "  redis.call('SET', KEYS[2], 0)\n"
+                        + "end\n"
+                        + "if length * 8 < tonumber(ARGV[1]) then\n"
+                        // the start index of redis's bitset is 0,the last index is size-1
+                        + "  redis.call('SETBIT', KEYS[1], ARGV[1] - 1, 0)\n"
+                        + "end\n"
+                        + "return 1");
+
+        /**
+         * Sets bits of a segment (KEYS[1]) with the BITFIELD SET operations in ARGV and adds the number
+         * of bits that changed to its count (KEYS[2]); replies that number. A missing count is left
+         * missing: the segment predates counting and is counted in full by {@link #COUNT_SCRIPT}.
+         */
+        static final RedisScript SET_BITS_SCRIPT = new RedisScript(
+                "local old = redis.call('BITFIELD', KEYS[1], unpack(ARGV))\n"
+                        + "local changed = 0\n"
+                        + "for i = 1, #old do\n"
+                        + "  if old[i] == 0 then changed = changed + 1 end\n"
+                        + "end\n"
+                        + "if changed > 0 and redis.call('EXISTS', KEYS[2]) == 1 then\n"
+                        + "  redis.call('INCRBY', KEYS[2], changed)\n"
+                        + "end\n"
+                        + "return changed");
+
+        /**
+         * Replies the count of set bits of a segment (KEYS[1]) stored in KEYS[2], counting the
+         * segment with one BITCOUNT the first time if it predates counting.
+         */
+        static final RedisScript COUNT_SCRIPT = new RedisScript(
+                "local count = redis.call('GET', KEYS[2])\n"
+                        + "if not count then\n"
+                        + "  count = redis.call('BITCOUNT', KEYS[1])\n"
+                        + "  redis.call('SET', KEYS[2], count)\n"
+                        + "end\n"
+                        + "return tonumber(count)");
+
+        /**
+         * Stores the BITOP (ARGV[1]) of two segments (KEYS[2], KEYS[3]) in a third (KEYS[1]) and
+         * recounts it into its count (KEYS[4]), so the count of a merged filter stays exact.
+         */
+        static final RedisScript BITOP_SCRIPT = new RedisScript(
+                "local length = redis.call('BITOP', ARGV[1], KEYS[1], KEYS[2], KEYS[3])\n"
+                        + "redis.call('SET', KEYS[4], redis.call('BITCOUNT', KEYS[1]))\n"
+                        + "return length");
+
+        /**
+         * ORs ranges of bytes into a bitmap (KEYS[1]). ARGV holds pairs of byte offset and bytes; every
+         * range is read, merged and written back atomically, so bits set concurrently by others are
+         * kept. The number of bits that changed is added to the count (KEYS[2]), as in
+         * {@link #SET_BITS_SCRIPT}, and replied.
+         */
+        static final RedisScript OR_RANGES_SCRIPT = new RedisScript(
+                "local added = 0\n"
+                        + "for i = 1, #ARGV, 2 do\n"
+                        + "  local offset = tonumber(ARGV[i])\n"
+                        + "  local bits = ARGV[i + 1]\n"
+                        + "  local old = redis.call('GETRANGE', KEYS[1], offset, offset + #bits - 1)\n"
+                        + "  local merged = {}\n"
+                        + "  for j = 1, #bits do\n"
+                        + "    local o = string.byte(old, j) or 0\n"
+                        + "    local b = string.byte(bits, j)\n"
+                        + "    local new = bit.band(b, bit.bnot(o))\n"
+                        + "    while new ~= 0 do\n"
+                        + "      added = added + 1\n"
+                        + "      new = bit.band(new, new - 1)\n"
+                        + "    end\n"
+                        + "    merged[j] = string.char(bit.bor(o, b))\n"
+                        + "  end\n"
+                        + "  redis.call('SETRANGE', KEYS[1], offset, table.concat(merged))\n"
+                        + "end\n"
+                        + "if added > 0 and redis.call('EXISTS', KEYS[2]) == 1 then\n"
+                        + "  redis.call('INCRBY', KEYS[2], added)\n"
+                        + "end\n"
+                        + "return added");
+
+        /**
+         * UNLINK through a script, as not every client version has the command.
+         */
+        static final RedisScript UNLINK_SCRIPT = new RedisScript("return redis.call('UNLINK', KEYS[1])");
+
+        /**
+         * Maximum number of ranges merged by one call of the OR script, to bound how long it blocks redis.
+         */
+        private static final int MAX_RANGES_PER_CALL = 1024;
+
+        /**
+         * Number of bytes downloaded by one GETRANGE when loading a local replica.
+         */
+        private static final int REPLICA_CHUNK_BYTES = 1 << 20;
+
+        /**
+         * The most bytes per second that the refreshes of a local replica download on average: the
+         * refresh interval is at least the time the whole bitmap takes at this rate.
+         */
+        private static final long REPLICA_REFRESH_BYTES_PER_SECOND = 64 << 20;
+
         private String actKey;
         private String statType;
 
-        Jedis jedis = new Jedis("localhost");
+        /**
+         * The geometry of the filter
+         */
+        private final FilterHeader header;
 
-        RedisBitArray(long bits, String actKey, String statType) {
-//        this(new long[Ints.checkedCast(LongMath.divide(bits, 64, RoundingMode.CEILING))], actKey, statType);
-            int redisBits = Ints.checkedCast(LongMath.divide(bits, 64, RoundingMode.CEILING)) * 64;
-            checkArgument(redisBits > 0, "data length is zero!");
+        /**
+         * Number of bits, read once from the filter header
+         */
+        private final long bitSize;
+
+        /**
+         * Number of bits of every segment; bit {@code i} lives in segment {@code i / segmentBitSize}
+         */
+        private final long segmentBitSize;
+
+        /**
+         * The redis key of every segment
+         */
+        private final String[] keys;
+
+        /**
+         * The keys encoded once, for the binary commands
+         */
+        private final byte[][] binaryKeys;
+
+        /**
+         * The key of the count of set bits of every segment, in the same cluster slot as the segment
+         */
+        private final String[] countKeys;
+        private final byte[][] binaryCountKeys;
+
+        /**
+         * The keys of the scripts that update every segment: the segment and its count
+         */
+        private final List<List<byte[]>> scriptKeys;
+
+        /**
+         * Source of the connections; every operation borrows its own, so the array is thread-safe
+         */
+        private final RedisConnectionProvider connections;
 
-            // the start index of redis's bitset is 0,the last index is size-1
-            jedis.setbit(getKey(actKey, statType), redisBits - 1, false);
+        /**
+         * The local buffer of bits not yet merged into redis, or {@code null} unless write-behind is
+         * enabled
+         */
+        @Nullable
+        private volatile WriteBehindBuffer writeBehind;
+
+        @Nullable
+        private ScheduledFuture<?> flushTask;
+
+        /**
+         * The local cache of bits known to be set in redis, or {@code null} unless it is enabled
+         */
+        @Nullable
+        private volatile NearCache nearCache;
+
+        /**
+         * The local copy of the whole bitmap that lookups are answered from, or {@code null} unless
+         * it is enabled
+         */
+        @Nullable
+        private volatile LocalReplica replica;
+
+        @Nullable
+        private ScheduledFuture<?> refreshTask;
+
+        private final FilterMetrics metrics = new FilterMetrics();
 
+        /**
+         * Opens the bitmap of a filter described by {@code header}.
+         */
+        RedisBitArray(FilterHeader header, RedisConnectionProvider connections, String actKey, String statType) {
+            this.header = header;
+            this.bitSize = header.bitSize();
+            this.segmentBitSize = segmentBitSize(bitSize, header.segments());
+            this.keys = segmentKeys(getKey(actKey, statType), header.segments(), header.hashTags());
+            this.binaryKeys = new byte[keys.length][];
+            this.countKeys = new String[keys.length];
+            this.binaryCountKeys = new byte[keys.length][];
+            this.scriptKeys = new ArrayList<List<byte[]>>(keys.length);
+            for (int i = 0; i < keys.length; i++) {
+                binaryKeys[i] = SafeEncoder.encode(keys[i]);
+                countKeys[i] = countKey(keys[i]);
+                binaryCountKeys[i] = SafeEncoder.encode(countKeys[i]);
+                scriptKeys.add(Arrays.asList(binaryKeys[i], binaryCountKeys[i]));
+            }
+            this.connections = checkNotNull(connections);
             this.actKey = actKey;
             this.statType = statType;
         }
 
+        FilterMetrics metrics() {
+            return metrics;
+        }
+
+        /**
+         * Borrows a connection for one round trip, a single command or a pipeline sync, on {@code key}.
+         */
+        private Jedis connection(String key) {
+            metrics.roundTrips.increment();
+            return connections.getResource(key);
+        }
+
+        /**
+         * Returns the number of bits actually allocated in redis for a filter of {@code bits} bits,
+         * rounded up to a whole number of longs.
+         */
+        static long redisBitSize(long bits) {
+            long redisBits = LongMath.divide(bits, 64, RoundingMode.CEILING) * 64;
+            checkArgument(redisBits > 0, "data length is zero!");
+            return redisBits;
+        }
+
+        /**
+         * Returns the least number of segments that can hold {@code bitSize} bits.
+         */
+        static int minSegments(long bitSize) {
+            return Ints.checkedCast(LongMath.divide(bitSize, MAX_BIT_SIZE, RoundingMode.CEILING));
+        }
+
+        /**
+         * Returns the number of bits of each of the {@code segments} segments of a filter of
+         * {@code bitSize} bits.
+         */
+        static long segmentBitSize(long bitSize, int segments) {
+            checkArgument(
+                    segments > 0 && segments <= MAX_SEGMENTS,
+                    "segments (%s) must be in [1, %s]",
+                    segments,
+                    MAX_SEGMENTS);
+            long segmentBits = redisBitSize(LongMath.divide(bitSize, segments, RoundingMode.CEILING));
+            checkArgument(
+                    segmentBits <= MAX_BIT_SIZE,
+                    "%s bits do not fit in %s redis strings (max %s bits each)",
+                    bitSize,
+                    segments,
+                    MAX_BIT_SIZE);
+            return segmentBits;
+        }
+
+        /**
+         * Returns the keys of the segments of the filter stored under {@code key}. A single untagged
+         * segment keeps the filter key itself, so filters created before segmentation stay readable.
+         */
+        static String[] segmentKeys(String key, int segments, boolean hashTags) {
+            if (segments == 1 && !hashTags) {
+                return new String[]{key};
+            }
+            String[] keys = new String[segments];
+            for (int i = 0; i < segments; i++) {
+                keys[i] = hashTags ? hashTaggedKey(key, i, segments) : key + "_" + i;
+            }
+            return keys;
+        }
+
+        /**
+         * Returns the key of the count of set bits of the segment stored under {@code key}. It shares
+         * the hash tag of the segment, or takes the segment key as its tag, so that the scripts
+         * updating both work on a redis cluster.
+         */
+        static String countKey(String key) {
+            int open = key.indexOf('{');
+            int close = open < 0 ? -1 : key.indexOf('}', open + 1);
+            if (close > open + 1) {
+                return key + "_count";
+            }
+            return "{" + key + "}_count";
+        }
+
+        /**
+         * Returns a key for segment {@code segment} whose hash tag falls in the {@code segment}-th of
+         * {@code segments} equal ranges of cluster slots, so the segments of a filter are spread over
+         * the whole cluster instead of wherever their names happen to hash.
+         */
+        private static String hashTaggedKey(String key, int segment, int segments) {
+            long fromSlot = (long) CLUSTER_SLOTS * segment / segments;
+            long toSlot = (long) CLUSTER_SLOTS * (segment + 1) / segments;
+            for (int salt = 0; ; salt++) {
+                String tag = key + "_" + segment + "_" + salt;
+                int slot = JedisClusterCRC16.getSlot(tag);
+                if (slot >= fromSlot && slot < toSlot) {
+                    return "{" + tag + "}";
+                }
+            }
+        }
+
+        /**
+         * Stores {@code header} if the filter does not exist yet. Returns the header actually stored,
+         * which differs from {@code header} if the filter was already created with another geometry.
+         *
+         * @throws IllegalArgumentException if the key of the filter holds bits but has no header
+         */
+        static FilterHeader createHeader(
+                FilterHeader header, RedisConnectionProvider connections, String actKey, String statType) {
+            String headerKey = getHeaderKey(actKey, statType);
+            try (Jedis jedis = connections.getResource(headerKey)) {
+                if (!jedis.exists(headerKey)) {
+                    checkNoLegacyBits(connections, getKey(actKey, statType));
+                }
+                Object stored = CREATE_HEADER_SCRIPT.eval(
+                        jedis, Collections.singletonList(SafeEncoder.encode(headerKey)), header.toArguments());
+                return FilterHeader.fromList((List<?>) stored);
+            }
+        }
+
+        /**
+         * Fails if {@code key} holds bits without a header, as filters written before the header did.
+         * Their bits were indexed modulo the STRLEN byte count of the key rather than a bit size, so a
+         * header written over them would silently lose every element put before.
+         */
+        private static void checkNoLegacyBits(RedisConnectionProvider connections, String key) {
+            boolean exists;
+            try (Jedis jedis = connections.getResource(key)) {
+                exists = jedis.exists(key);
+            }
+            checkArgument(
+                    !exists,
+                    "Key %s holds the bits of a BloomFilter written without a header; its elements cannot be"
+                            + " read under a new one, so rename or delete the key first",
+                    key);
+        }
+
+        /**
+         * Returns the header of an existing filter, or {@code null} if there is none.
+         */
+        @Nullable
+        static FilterHeader readHeader(RedisConnectionProvider connections, String actKey, String statType) {
+            String headerKey = getHeaderKey(actKey, statType);
+            try (Jedis jedis = connections.getResource(headerKey)) {
+                Map<String, String> fields = jedis.hgetAll(headerKey);
+                return fields.isEmpty() ? null : FilterHeader.fromMap(fields);
+            }
+        }
+
+        /**
+         * Allocates every segment to its full size up front, so redis memory does not grow as the
+         * filter fills.
+         */
+        void preallocate() {
+            List<byte[]> arguments = Collections.singletonList(SafeEncoder.encode(String.valueOf(segmentBitSize)));
+            for (int segment = 0; segment < keys.length; segment++) {
+                try (Jedis jedis = connection(keys[segment])) {
+                    PREALLOCATE_SCRIPT.eval(jedis, scriptKeys.get(segment), arguments);
+                }
+            }
+        }
+
 //    // Used by serialization
 //    RedisBitArray(long[] data, String actKey, String statType) {
 //        checkArgument(data.length > 0, "data length is zero!");
@@ -184,38 +640,689 @@ enum BloomFilterStrategies implements BloomFilter.Strategy {
 //    }
 
         /**
-         * Returns true if the bit changed value, and ensure that the value is we need to set
+         * Sets a bit. Returns true if the bit changed value, i.e. it was not set before.
          */
         boolean set(long bitIndex) {
-//        if (get(bitIndex)) {
-//            return false;
-//        }
+            WriteBehindBuffer buffer = writeBehind;
+            if (buffer != null) {
+                boolean changed = buffer.set(bitIndex);
+                if (writeBehind == buffer) {
+                    return changed;
+                }
+                // write-behind was disabled meanwhile, its last flush may have missed the bit
+            }
+            long[] bitIndexes = {bitIndex};
+            boolean changed = bitfield(bitIndexes, true);
+            written(bitIndexes);
+            return changed;
+        }
 
-//        int longIndex = (int) (bitIndex >>> LONG_ADDRESSABLE_BITS);
-//        long mask = 1L << bitIndex; // only cares about low 6 bits of bitIndex
+        boolean get(long bitIndex) {
+            WriteBehindBuffer buffer = writeBehind;
+            if (buffer != null && buffer.get(bitIndex)) {
+                return true;
+            }
+            LocalReplica mirror = replica;
+            if (mirror != null) {
+                return mirror.get(bitIndex);
+            }
+            NearCache cache = nearCache;
+            if (cache != null && cache.get(bitIndex)) {
+                return true;
+            }
+            boolean set;
+            int segment = segment(bitIndex);
+            try (Jedis jedis = connection(keys[segment])) {
+                set = jedis.getbit(binaryKeys[segment], bitIndex % segmentBitSize);
+            }
+            if (set && cache != null) {
+                cache.set(bitIndex);
+            }
+            return set;
+        }
 
+        /**
+         * Sets all the given bits with one BITFIELD call per segment they fall in, so the element is
+         * written in a single round trip (one per touched segment if the filter is segmented),
+         * atomically with respect to other clients within each segment. Returns true if any bit
+         * changed value, i.e. this is definitely the first time these bits were set together.
+         */
+        boolean setAll(long[] bitIndexes) {
+            WriteBehindBuffer buffer = writeBehind;
+            if (buffer != null) {
+                boolean changed = buffer.setAll(bitIndexes);
+                if (writeBehind == buffer) {
+                    return changed;
+                }
+                // write-behind was disabled meanwhile, its last flush may have missed the bits
+            }
+            boolean changed = bitfield(bitIndexes, true);
+            written(bitIndexes);
+            return changed;
+        }
 
-//        long oldValue;
-//        long newValue;
-//        do {
-////            oldValue = data.get(longIndex);
-//            oldValue = jedis.getbit(longIndex);
-//            newValue = oldValue | mask;
-//            if (oldValue == newValue) {
-//                return false;
-//            }
-//        } while (!data.compareAndSet(longIndex, oldValue, newValue));
+        /**
+         * Reads all the given bits with one BITFIELD call per segment they fall in; returns
+         * {@code true} if and only if all of them are set. Bits known to be set locally are not read,
+         * so an element whose bits are all cached needs no round trip at all.
+         */
+        boolean getAll(long[] bitIndexes) {
+            long[] unknown = unknown(bitIndexes);
+            if (unknown.length == 0) {
+                return true;
+            }
+            if (replica != null) {
+                return false;
+            }
+            if (bitfield(unknown, false)) {
+                return false;
+            }
+            NearCache cache = nearCache;
+            if (cache != null) {
+                cache.setAll(unknown);
+            }
+            return true;
+        }
 
-            // We turned the bit on, so increment bitCount.
-//      bitCount.increment();
-//        再确认下是否与redis 命令一样，返回set 之间的值
-            return !jedis.setbit(getKey(actKey, statType), bitIndex, true);
-//        return true;
+        /**
+         * Returns true if all the given bits are known to be set without asking redis, i.e. they are
+         * pending in the write-behind buffer or cached.
+         */
+        boolean knownSet(long[] bitIndexes) {
+            return unknown(bitIndexes).length == 0;
         }
 
-        boolean get(long bitIndex) {
-//        return (data.get((int) (bitIndex >>> 6)) & (1L << bitIndex)) != 0;
-            return jedis.getbit(getKey(actKey, statType), bitIndex);
+        /**
+         * Reads {@code length} bytes of the bitmap starting at bit {@code fromBit}, which must be byte
+         * aligned, with one GETRANGE per segment the range spans (usually one). Bytes past the end of
+         * a segment that was never allocated read as 0.
+         */
+        byte[] getBytes(long fromBit, int length) {
+            checkArgument(fromBit % Byte.SIZE == 0, "fromBit (%s) must be byte aligned", fromBit);
+            checkArgument(fromBit + (long) length * Byte.SIZE <= bitSize, "range exceeds %s bits", bitSize);
+            byte[] bytes;
+            LocalReplica mirror = replica;
+            if (mirror != null) {
+                bytes = mirror.getBytes(fromBit, length);
+            } else {
+                bytes = new byte[length];
+                int read = 0;
+                while (read < length) {
+                    long bitIndex = fromBit + (long) read * Byte.SIZE;
+                    long offset = bitIndex % segmentBitSize / Byte.SIZE;
+                    int count = (int) Math.min(length - read, segmentBitSize / Byte.SIZE - offset);
+                    byte[] range = getRange(segment(bitIndex), offset, count);
+                    System.arraycopy(range, 0, bytes, read, range.length);
+                    read += count;
+                }
+
+                NearCache cache = nearCache;
+                if (cache != null) {
+                    cache.setBytes(fromBit, bytes);
+                }
+            }
+            WriteBehindBuffer buffer = writeBehind;
+            if (buffer != null) {
+                for (int i = 0; i < length; i++) {
+                    long bitIndex = fromBit + (long) i * Byte.SIZE;
+                    byte[] word = toRedisBytes(buffer.word(bitIndex >>> LONG_ADDRESSABLE_BITS));
+                    bytes[i] |= word[(int) (bitIndex & 63) >>> 3];
+                }
+            }
+            return bytes;
+        }
+
+        /**
+         * Pipelined form of {@link #setAll(long[])}: sends one BITFIELD per element and segment and
+         * reads all the replies after a single flush per segment. Bit {@code i} of the result is set
+         * if the bits of element {@code i} changed.
+         */
+        BitSet setAll(List<long[]> elements) {
+            WriteBehindBuffer buffer = writeBehind;
+            if (buffer != null) {
+                BitSet changed = new BitSet(elements.size());
+                for (int i = 0; i < elements.size(); i++) {
+                    if (buffer.setAll(elements.get(i))) {
+                        changed.set(i);
+                    }
+                }
+                if (writeBehind == buffer) {
+                    return changed;
+                }
+                // write-behind was disabled meanwhile, its last flush may have missed the bits
+            }
+            BitSet changed = bitfieldAll(elements, true);
+            for (long[] bitIndexes : elements) {
+                written(bitIndexes);
+            }
+            return changed;
+        }
+
+        /**
+         * Pipelined form of {@link #getAll(long[])}. Bit {@code i} of the result is set if all the bits
+         * of element {@code i} are set.
+         */
+        BitSet getAll(List<long[]> elements) {
+            NearCache cache = nearCache;
+            if (writeBehind != null || cache != null || replica != null) {
+                List<long[]> unknown = new ArrayList<long[]>(elements.size());
+                for (long[] bitIndexes : elements) {
+                    unknown.add(unknown(bitIndexes));
+                }
+                elements = unknown;
+            }
+            if (replica != null) {
+                BitSet contained = new BitSet(elements.size());
+                for (int i = 0; i < elements.size(); i++) {
+                    if (elements.get(i).length == 0) {
+                        contained.set(i);
+                    }
+                }
+                return contained;
+            }
+            BitSet cleared = bitfieldAll(elements, false);
+            BitSet contained = new BitSet(elements.size());
+            for (int i = cleared.nextClearBit(0); i < elements.size(); i = cleared.nextClearBit(i + 1)) {
+                contained.set(i);
+                if (cache != null) {
+                    cache.setAll(elements.get(i));
+                }
+            }
+            return contained;
+        }
+
+        /**
+         * Sets ({@code set == true}) or reads the given bits with one BITFIELD per segment they fall
+         * in. Returns true if any of the bits was 0, before being set.
+         */
+        private boolean bitfield(long[] bitIndexes, boolean set) {
+            if (keys.length == 1) {
+                return bitfield(0, bitIndexes, set);
+            }
+            long[][] bySegment = bySegment(bitIndexes);
+            boolean anyCleared = false;
+            for (int segment = 0; segment < keys.length; segment++) {
+                if (bySegment[segment] != null) {
+                    anyCleared |= bitfield(segment, bySegment[segment], set);
+                }
+            }
+            return anyCleared;
+        }
+
+        private boolean bitfield(int segment, long[] offsets, boolean set) {
+            if (set) {
+                return setBits(segment, offsets) > 0;
+            }
+            byte[][] arguments = BitfieldArguments.get(offsets);
+            metrics.bytesSent.add(BitfieldArguments.length(arguments));
+            // BinaryJedis declares List<byte[]>, but BITFIELD GET replies with integers: the elements
+            // are Longs.
+            List<?> replies;
+            try (Jedis jedis = connection(keys[segment])) {
+                replies = jedis.bitfield(binaryKeys[segment], arguments);
+            }
+            metrics.bytesReceived.add(replies.size());
+            return anyCleared(replies);
+        }
+
+        /**
+         * Sets the bits {@code offsets} of segment {@code segment} with one call of
+         * {@link #SET_BITS_SCRIPT}. Returns the number of bits that were 0.
+         */
+        private long setBits(int segment, long[] offsets) {
+            List<byte[]> arguments = BitfieldArguments.set(offsets);
+            metrics.bytesSent.add(BitfieldArguments.length(arguments));
+            Object changed;
+            try (Jedis jedis = connection(keys[segment])) {
+                changed = SET_BITS_SCRIPT.eval(jedis, scriptKeys.get(segment), arguments);
+            }
+            metrics.bytesReceived.increment();
+            return (Long) changed;
+        }
+
+        /**
+         * Pipelined form of {@link #bitfield(long[], boolean)}. Bit {@code i} of the result is set if
+         * any bit of element {@code i} was 0.
+         */
+        private BitSet bitfieldAll(List<long[]> elements, boolean set) {
+            List<long[][]> bySegment = new ArrayList<long[][]>(elements.size());
+            for (long[] bitIndexes : elements) {
+                bySegment.add(bySegment(bitIndexes));
+            }
+
+            BitSet anyCleared = new BitSet(elements.size());
+            List<Response<?>> responses = new ArrayList<Response<?>>(elements.size());
+            for (int segment = 0; segment < keys.length; segment++) {
+                byte[] key = binaryKeys[segment];
+                List<byte[]> segmentScriptKeys = scriptKeys.get(segment);
+                responses.clear();
+                int batchSize = 0;
+                try (Jedis jedis = connection(keys[segment])) {
+                    Pipeline pipeline = jedis.pipelined();
+                    for (long[][] offsets : bySegment) {
+                        long[] segmentOffsets = offsets[segment];
+                        if (segmentOffsets == null) {
+                            responses.add(null);
+                            continue;
+                        }
+                        if (set) {
+                            List<byte[]> arguments = BitfieldArguments.set(segmentOffsets);
+                            metrics.bytesSent.add(BitfieldArguments.length(arguments));
+                            responses.add(SET_BITS_SCRIPT.eval(jedis, pipeline, segmentScriptKeys, arguments));
+                        } else {
+                            byte[][] arguments = BitfieldArguments.get(segmentOffsets);
+                            metrics.bytesSent.add(BitfieldArguments.length(arguments));
+                            responses.add(pipeline.bitfield(key, arguments));
+                        }
+                        batchSize++;
+                    }
+                    pipeline.sync();
+                }
+                metrics.batchSizes.record(batchSize);
+                for (int i = 0; i < responses.size(); i++) {
+                    if (responses.get(i) == null) {
+                        continue;
+                    }
+                    boolean cleared;
+                    if (set) {
+                        long changed;
+                        try {
+                            changed = (Long) responses.get(i).get();
+                            metrics.bytesReceived.increment();
+                        } catch (JedisNoScriptException e) {
+                            // the node lost the script after it was loaded: the call did not run
+                            changed = setBits(segment, bySegment.get(i)[segment]);
+                        }
+                        cleared = changed > 0;
+                    } else {
+                        @SuppressWarnings("unchecked")
+                        List<Long> replies = (List<Long>) responses.get(i).get();
+                        metrics.bytesReceived.add(replies.size());
+                        cleared = anyCleared(replies);
+                    }
+                    if (cleared) {
+                        anyCleared.set(i);
+                    }
+                }
+            }
+            return anyCleared;
+        }
+
+        /**
+         * Starts caching the bits known to be set in redis in at most {@code maxBytes} of local memory,
+         * replacing any previous cache. Only valid while the bitmap is never cleared or deleted.
+         */
+        void enableNearCache(long maxBytes) {
+            nearCache = new NearCache(maxBytes);
+        }
+
+        void disableNearCache() {
+            nearCache = null;
+        }
+
+        /**
+         * Downloads the whole bitmap into a local replica, {@link #REPLICA_CHUNK_BYTES} per GETRANGE
+         * with the chunks fetched in parallel on {@code executor}, then answers lookups from it.
+         * <p>
+         * <p>The replica is refreshed every {@code refreshInterval}, but no more often than the whole
+         * bitmap downloads at {@link #REPLICA_REFRESH_BYTES_PER_SECOND}. A refresh reads the count of
+         * set bits of every segment and downloads again, ORing them in, only the segments whose count
+         * moved since their last download: bits are only ever set, so an unchanged count means
+         * unchanged bits. A refresh still running when the next one is due skips it.
+         * <p>
+         * <p>Blocks until the replica is loaded, so it must not be called on a thread of
+         * {@code executor}.
+         */
+        synchronized void enableReplica(
+                final ScheduledExecutorService executor, long refreshInterval, TimeUnit unit) {
+            checkArgument(refreshInterval > 0, "refreshInterval (%s) must be > 0", refreshInterval);
+            checkState(replica == null, "the local replica is already enabled");
+            final LocalReplica mirror = new LocalReplica(keys.length * segmentBitSize);
+            // the counts the segments had when they were last downloaded, null to download them again
+            final String[] downloaded = readCounts();
+            BitSet segments = new BitSet(keys.length);
+            segments.set(0, keys.length);
+            for (Future<?> chunk : download(mirror, executor, segments, downloaded)) {
+                try {
+                    Uninterruptibles.getUninterruptibly(chunk);
+                } catch (ExecutionException e) {
+                    Throwables.throwIfUnchecked(e.getCause());
+                    throw new IllegalStateException(e.getCause());
+                }
+            }
+            replica = mirror;
+            long minRefreshNanos = (long) (bitSize / Byte.SIZE * 1e9 / REPLICA_REFRESH_BYTES_PER_SECOND);
+            long refreshNanos = Math.max(unit.toNanos(refreshInterval), minRefreshNanos);
+            refreshTask = executor.scheduleWithFixedDelay(
+                    new Runnable() {
+                        private List<Future<?>> refreshing = Collections.emptyList();
+
+                        @Override
+                        public void run() {
+                            for (Future<?> chunk : refreshing) {
+                                if (!chunk.isDone()) {
+                                    return;
+                                }
+                            }
+                            String[] counts = readCounts();
+                            BitSet changed = new BitSet(keys.length);
+                            for (int segment = 0; segment < keys.length; segment++) {
+                                if (counts[segment] == null || !counts[segment].equals(downloaded[segment])) {
+                                    downloaded[segment] = counts[segment];
+                                    changed.set(segment);
+                                }
+                            }
+                            refreshing = download(mirror, executor, changed, downloaded);
+                        }
+                    },
+                    refreshNanos,
+                    refreshNanos,
+                    TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * Stops answering lookups locally and drops the replica.
+         */
+        synchronized void disableReplica() {
+            if (replica == null) {
+                return;
+            }
+            refreshTask.cancel(false);
+            refreshTask = null;
+            replica = null;
+        }
+
+        /**
+         * Submits the download of every chunk of every segment into {@code mirror}.
+         */
+        /**
+         * Downloads {@code segments} into {@code mirror} on {@code executor}. A segment a chunk of which
+         * fails gets its count in {@code downloaded} cleared, so the next refresh downloads it again.
+         */
+        private List<Future<?>> download(
+                final LocalReplica mirror, ExecutorService executor, BitSet segments, final String[] downloaded) {
+            long segmentBytes = segmentBitSize / Byte.SIZE;
+            List<Future<?>> chunks = new ArrayList<Future<?>>();
+            for (int segment = segments.nextSetBit(0); segment >= 0; segment = segments.nextSetBit(segment + 1)) {
+                for (long offset = 0; offset < segmentBytes; offset += REPLICA_CHUNK_BYTES) {
+                    final int chunkSegment = segment;
+                    final long chunkOffset = offset;
+                    final int count = (int) Math.min(REPLICA_CHUNK_BYTES, segmentBytes - offset);
+                    chunks.add(executor.submit(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                byte[] range = getRange(chunkSegment, chunkOffset, count);
+                                mirror.orBytes(chunkSegment * segmentBitSize + chunkOffset * Byte.SIZE, range);
+                            } catch (RuntimeException e) {
+                                downloaded[chunkSegment] = null;
+                                throw e;
+                            }
+                        }
+                    }));
+                }
+            }
+            return chunks;
+        }
+
+        /**
+         * Reads the count of set bits of every segment, {@code null} for a segment without a count.
+         */
+        private String[] readCounts() {
+            String[] counts = new String[keys.length];
+            for (int segment = 0; segment < keys.length; segment++) {
+                try (Jedis jedis = connection(countKeys[segment])) {
+                    counts[segment] = jedis.get(countKeys[segment]);
+                }
+            }
+            return counts;
+        }
+
+        /**
+         * Reads {@code count} bytes of segment {@code segment} from byte {@code offset}. The reply is
+         * shorter if the segment string is.
+         */
+        private byte[] getRange(int segment, long offset, int count) {
+            byte[] range;
+            try (Jedis jedis = connection(keys[segment])) {
+                range = jedis.getrange(binaryKeys[segment], offset, offset + count - 1);
+            }
+            metrics.bytesReceived.add(range.length);
+            return range;
+        }
+
+        /**
+         * Switches to write-behind: bits are set in a local buffer, which is merged into redis by
+         * {@link #flush()} every {@code flushInterval} on {@code executor}.
+         */
+        synchronized void enableWriteBehind(ScheduledExecutorService executor, long flushInterval, TimeUnit unit) {
+            checkArgument(flushInterval > 0, "flushInterval (%s) must be > 0", flushInterval);
+            checkState(writeBehind == null, "write-behind is already enabled");
+            writeBehind = new WriteBehindBuffer(bitSize);
+            flushTask = executor.scheduleWithFixedDelay(
+                    new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                flush();
+                            } catch (RuntimeException e) {
+                                // the bits are back in the buffer, the next flush retries them
+                            }
+                        }
+                    },
+                    flushInterval,
+                    flushInterval,
+                    unit);
+        }
+
+        /**
+         * Stops write-behind after a last flush; bits are written straight to redis again. If the last
+         * flush fails, write-behind stays enabled (without periodic flushes) so no bit is lost.
+         */
+        synchronized void disableWriteBehind() {
+            WriteBehindBuffer buffer = writeBehind;
+            if (buffer == null) {
+                return;
+            }
+            flushTask.cancel(false);
+            flushTask = null;
+            writeBehind = null;
+            try {
+                flush(buffer);
+            } catch (RuntimeException e) {
+                writeBehind = buffer;
+                throw e;
+            }
+        }
+
+        /**
+         * Merges the bits buffered by write-behind into redis, as runs of consecutive dirty blocks
+         * ORed into the bitmap by one script call per {@link #MAX_RANGES_PER_CALL} runs and segment.
+         * If redis fails, the bits are put back in the buffer for the next flush.
+         */
+        synchronized void flush() {
+            WriteBehindBuffer buffer = writeBehind;
+            if (buffer != null) {
+                flush(buffer);
+            }
+        }
+
+        /**
+         * Merges the bits of {@code buffer} into redis, putting them back in the buffer if redis fails.
+         */
+        void flush(WriteBehindBuffer buffer) {
+            if (buffer.isEmpty()) {
+                return;
+            }
+            SortedMap<Long, long[]> blocks = buffer.drain();
+            try {
+                orBlocks(blocks);
+            } catch (RuntimeException e) {
+                buffer.restore(blocks);
+                throw e;
+            }
+            buffer.flushed(blocks);
+        }
+
+        /**
+         * ORs blocks of words, by the index of their first word, into redis. Consecutive blocks are
+         * sent as one range, cut at segment boundaries.
+         */
+        private void orBlocks(SortedMap<Long, long[]> blocks) {
+            long wordsPerSegment = segmentBitSize / Long.SIZE;
+            Map<Integer, List<byte[]>> rangesBySegment = new TreeMap<Integer, List<byte[]>>();
+            ByteArrayOutputStream run = new ByteArrayOutputStream();
+            long runStart = -1;
+            long nextWord = -1;
+            for (Map.Entry<Long, long[]> entry : blocks.entrySet()) {
+                long wordIndex = entry.getKey();
+                for (long word : entry.getValue()) {
+                    if (wordIndex != nextWord || wordIndex % wordsPerSegment == 0) {
+                        addRange(rangesBySegment, runStart, run, wordsPerSegment);
+                        runStart = wordIndex;
+                    }
+                    run.write(toRedisBytes(word), 0, Longs.BYTES);
+                    nextWord = ++wordIndex;
+                }
+            }
+            addRange(rangesBySegment, runStart, run, wordsPerSegment);
+
+            for (Map.Entry<Integer, List<byte[]>> entry : rangesBySegment.entrySet()) {
+                String key = keys[entry.getKey()];
+                List<byte[]> segmentScriptKeys = scriptKeys.get(entry.getKey());
+                List<byte[]> ranges = entry.getValue();
+                for (byte[] range : ranges) {
+                    metrics.bytesSent.add(range.length);
+                }
+                List<List<byte[]>> calls = new ArrayList<List<byte[]>>();
+                List<Response<Object>> responses = new ArrayList<Response<Object>>();
+                try (Jedis jedis = connection(key)) {
+                    Pipeline pipeline = jedis.pipelined();
+                    for (int i = 0; i < ranges.size(); i += 2 * MAX_RANGES_PER_CALL) {
+                        List<byte[]> arguments = ranges.subList(i, Math.min(ranges.size(), i + 2 * MAX_RANGES_PER_CALL));
+                        calls.add(arguments);
+                        responses.add(OR_RANGES_SCRIPT.eval(jedis, pipeline, segmentScriptKeys, arguments));
+                    }
+                    pipeline.sync();
+                    for (int i = 0; i < responses.size(); i++) {
+                        try {
+                            responses.get(i).get();
+                        } catch (JedisNoScriptException e) {
+                            // the node lost the script after it was loaded: the call did not run
+                            OR_RANGES_SCRIPT.eval(jedis, segmentScriptKeys, calls.get(i));
+                        }
+                    }
+                }
+            }
+        }
+
+        /**
+         * Adds the run of words starting at word {@code runStart} as a byte offset and bytes to the
+         * ranges of its segment, then empties {@code run}.
+         */
+        private static void addRange(
+                Map<Integer, List<byte[]>> rangesBySegment, long runStart, ByteArrayOutputStream run, long wordsPerSegment) {
+            if (run.size() == 0) {
+                return;
+            }
+            int segment = (int) (runStart / wordsPerSegment);
+            List<byte[]> ranges = rangesBySegment.get(segment);
+            if (ranges == null) {
+                ranges = new ArrayList<byte[]>();
+                rangesBySegment.put(segment, ranges);
+            }
+            ranges.add(SafeEncoder.encode(String.valueOf(runStart % wordsPerSegment * Longs.BYTES)));
+            ranges.add(run.toByteArray());
+            run.reset();
+        }
+
+        /**
+         * Returns the bytes of a 64-bit word of bits as laid out in a redis bitmap: bit {@code i} of
+         * the word is bit {@code 7 - i % 8} of byte {@code i / 8}.
+         */
+        private static byte[] toRedisBytes(long word) {
+            return Longs.toByteArray(Long.reverse(word));
+        }
+
+        /**
+         * Records bits just set in redis in the local copies of the bitmap.
+         */
+        private void written(long[] bitIndexes) {
+            NearCache cache = nearCache;
+            if (cache != null) {
+                cache.setAll(bitIndexes);
+            }
+            LocalReplica mirror = replica;
+            if (mirror != null) {
+                mirror.setAll(bitIndexes);
+            }
+        }
+
+        /**
+         * Returns the bit indexes that are neither pending in the write-behind buffer nor cached as
+         * set, which are the only ones redis needs to be asked about.
+         */
+        private long[] unknown(long[] bitIndexes) {
+            WriteBehindBuffer buffer = writeBehind;
+            NearCache cache = nearCache;
+            LocalReplica mirror = replica;
+            if (buffer == null && cache == null && mirror == null) {
+                return bitIndexes;
+            }
+            long[] unknown = new long[bitIndexes.length];
+            int count = 0;
+            for (long bitIndex : bitIndexes) {
+                if ((buffer == null || !buffer.get(bitIndex))
+                        && (cache == null || !cache.get(bitIndex))
+                        && (mirror == null || !mirror.get(bitIndex))) {
+                    unknown[count++] = bitIndex;
+                }
+            }
+            return count == bitIndexes.length ? bitIndexes : Arrays.copyOf(unknown, count);
+        }
+
+        private int segment(long bitIndex) {
+            return (int) (bitIndex / segmentBitSize);
+        }
+
+        /**
+         * Splits bit indexes by segment; entry {@code s} holds the offsets within segment {@code s},
+         * or {@code null} if none of the bits falls in it.
+         */
+        private long[][] bySegment(long[] bitIndexes) {
+            long[][] bySegment = new long[keys.length][];
+            if (keys.length == 1) {
+                bySegment[0] = bitIndexes;
+                return bySegment;
+            }
+            int[] counts = new int[keys.length];
+            for (long bitIndex : bitIndexes) {
+                counts[segment(bitIndex)]++;
+            }
+            for (int segment = 0; segment < keys.length; segment++) {
+                if (counts[segment] > 0) {
+                    bySegment[segment] = new long[counts[segment]];
+                    counts[segment] = 0;
+                }
+            }
+            for (long bitIndex : bitIndexes) {
+                int segment = segment(bitIndex);
+                bySegment[segment][counts[segment]++] = bitIndex % segmentBitSize;
+            }
+            return bySegment;
+        }
+
+        /**
+         * Returns true if any of the bit values replied by BITFIELD is 0. For SET operations these are
+         * the previous values, so a 0 means the bit changed.
+         */
+        private static boolean anyCleared(List<?> values) {
+            for (Object value : values) {
+                if ((Long) value == 0L) {
+                    return true;
+                }
+            }
+            return false;
         }
 
         /**
@@ -235,20 +1342,223 @@ enum BloomFilterStrategies implements BloomFilter.Strategy {
          * Number of bits
          */
         long bitSize() {
-//        return (long) data.length() * Long.SIZE;
-            return jedis.strlen(getKey(actKey, statType));
+            return bitSize;
         }
 
         /**
          * Number of set bits (1s).
          * <p>
-         * <p>Note that because of concurrent set calls and uses of atomics, this bitCount is a (very)
-         * close *estimate* of the actual number of bits set. It's not possible to do better than an
-         * estimate without locking. Note that the number, if not exactly accurate, is *always*
-         * underestimating, never overestimating.
+         * <p>The count of every segment is kept next to it by the scripts that set bits, so this
+         * reads one number per segment instead of scanning the bitmap; only a segment written before
+         * counting existed is scanned, once. Bits still pending in a write-behind buffer are not
+         * counted.
          */
         long bitCount() {
-            return jedis.bitcount(getKey(actKey, statType));
+            long bitCount = 0;
+            List<byte[]> arguments = Collections.emptyList();
+            for (int segment = 0; segment < keys.length; segment++) {
+                try (Jedis jedis = connection(keys[segment])) {
+                    bitCount += (Long) COUNT_SCRIPT.eval(jedis, scriptKeys.get(segment), arguments);
+                }
+            }
+            return bitCount;
+        }
+
+        /**
+         * Creates the filter {@code actKey}/{@code statType} with the same geometry as this one, on
+         * the same redis, unless it exists already with that geometry.
+         *
+         * @throws IllegalArgumentException if it exists with another geometry
+         */
+        RedisBitArray createLike(String actKey, String statType) {
+            FilterHeader stored = createHeader(header, connections, actKey, statType);
+            checkArgument(
+                    stored.equals(header),
+                    "BloomFilter of act %s statType %s already exists as %s, not %s",
+                    actKey,
+                    statType,
+                    stored,
+                    header);
+            return new RedisBitArray(stored, connections, actKey, statType);
+        }
+
+        /**
+         * Replaces the bits of {@code destination} with the bitwise OR of this array and
+         * {@code that}, computed inside redis by one BITOP per segment. {@code destination} may be
+         * this array.
+         */
+        void union(RedisBitArray that, RedisBitArray destination) {
+            bitop(BitOP.OR, that, destination);
+        }
+
+        /**
+         * Replaces the bits of {@code destination} with the bitwise AND of this array and
+         * {@code that}, computed inside redis by one BITOP per segment. {@code destination} may be
+         * this array; as this clears bits, it must not have a near cache or a replica.
+         */
+        void intersect(RedisBitArray that, RedisBitArray destination) {
+            checkState(
+                    destination.nearCache == null && destination.replica == null,
+                    "cannot clear bits of a filter with a near cache or replica");
+            bitop(BitOP.AND, that, destination);
+        }
+
+        /**
+         * Checks that this array and {@code that} can be combined into the filter
+         * {@code actKey}/{@code statType}, or into this array if {@code actKey} is {@code null}. BITOP
+         * runs on the node of the destination and reads the keys of {@code that} there, where the keys
+         * of a filter on another redis would read as empty; both arrays must therefore come from the
+         * same {@link RedisConnectionProvider}. On a redis cluster a script only runs over keys of one
+         * slot, so each segment must also share its slot with the same segment of the others; filters
+         * of a cluster are spread over distinct slots unless their keys were given the same hash tags.
+         *
+         * @throws IllegalArgumentException if the arrays have distinct connection providers, or if the
+         *                                  connections are to a cluster and a segment does not share
+         *                                  its slot
+         */
+        void checkBitop(RedisBitArray that, @Nullable String actKey, @Nullable String statType) {
+            checkArgument(
+                    keys.length == that.keys.length && segmentBitSize == that.segmentBitSize,
+                    "BitArrays must be segmented alike (%s x %s bits != %s x %s bits)",
+                    keys.length,
+                    segmentBitSize,
+                    that.keys.length,
+                    that.segmentBitSize);
+            checkArgument(
+                    connections == that.connections,
+                    "BloomFilters can only be combined by BITOP on the same redis,"
+                            + " but they have distinct connection providers (%s != %s)",
+                    connections,
+                    that.connections);
+            if (!(connections instanceof JedisClusterConnectionProvider)) {
+                return;
+            }
+            String[] destinationKeys = actKey == null
+                    ? keys
+                    : segmentKeys(getKey(actKey, statType), keys.length, header.hashTags());
+            for (int segment = 0; segment < keys.length; segment++) {
+                int slot = JedisClusterCRC16.getSlot(keys[segment]);
+                int thatSlot = JedisClusterCRC16.getSlot(that.keys[segment]);
+                int destinationSlot = JedisClusterCRC16.getSlot(destinationKeys[segment]);
+                checkArgument(
+                        slot == thatSlot && slot == destinationSlot,
+                        "BloomFilters on a redis cluster can only be combined by BITOP within one slot,"
+                                + " but segment %s is in slots %s, %s and %s (destination)",
+                        segment,
+                        slot,
+                        thatSlot,
+                        destinationSlot);
+            }
+        }
+
+        private void bitop(BitOP op, RedisBitArray that, RedisBitArray destination) {
+            checkBitop(that, destination.actKey, destination.statType);
+            // buffered bits are part of the sources
+            flush();
+            that.flush();
+            destination.flush();
+            List<byte[]> arguments = Collections.singletonList(SafeEncoder.encode(op.name()));
+            for (int segment = 0; segment < keys.length; segment++) {
+                try (Jedis jedis = destination.connection(destination.keys[segment])) {
+                    BITOP_SCRIPT.eval(
+                            jedis,
+                            Arrays.asList(
+                                    destination.binaryKeys[segment],
+                                    binaryKeys[segment],
+                                    that.binaryKeys[segment],
+                                    destination.binaryCountKeys[segment]),
+                            arguments);
+                }
+            }
+        }
+
+        /**
+         * Makes every key of the filter, header included, expire at unix time {@code millis}.
+         */
+        void expireAt(long millis) {
+            for (String key : allKeys()) {
+                try (Jedis jedis = connection(key)) {
+                    jedis.pexpireAt(key, millis);
+                }
+            }
+        }
+
+        /**
+         * Deletes every key of the filter, header included, with UNLINK so that redis frees the
+         * memory in the background instead of blocking on a large DEL.
+         */
+        void unlink() {
+            List<byte[]> arguments = Collections.emptyList();
+            for (String key : allKeys()) {
+                try (Jedis jedis = connection(key)) {
+                    UNLINK_SCRIPT.eval(jedis, Collections.singletonList(SafeEncoder.encode(key)), arguments);
+                }
+            }
+        }
+
+        private List<String> allKeys() {
+            List<String> allKeys = new ArrayList<String>(2 * keys.length + 1);
+            Collections.addAll(allKeys, keys);
+            Collections.addAll(allKeys, countKeys);
+            allKeys.add(getHeaderKey(actKey, statType));
+            return allKeys;
+        }
+
+        /**
+         * Reads bits {@code bitIndexes.get(i)} of array {@code arrays.get(i)} for every {@code i}, with
+         * one pipeline per redis node: the BITFIELD calls of all the keys served by a node share one
+         * connection. Bit {@code i} of the result is set if all the bits are set in array {@code i}.
+         * Local modes such as write-behind are ignored.
+         */
+        static BitSet getAll(List<RedisBitArray> arrays, List<long[]> bitIndexes) {
+            Map<String, Jedis> nodes = new HashMap<String, Jedis>();
+            Map<String, Pipeline> pipelines = new LinkedHashMap<String, Pipeline>();
+            List<List<Response<List<Long>>>> responses = new ArrayList<List<Response<List<Long>>>>(arrays.size());
+            try {
+                for (int i = 0; i < arrays.size(); i++) {
+                    RedisBitArray array = arrays.get(i);
+                    long[][] bySegment = array.bySegment(bitIndexes.get(i));
+                    List<Response<List<Long>>> arrayResponses = new ArrayList<Response<List<Long>>>();
+                    for (int segment = 0; segment < array.keys.length; segment++) {
+                        if (bySegment[segment] == null) {
+                            continue;
+                        }
+                        String key = array.keys[segment];
+                        Jedis jedis = array.connections.getResource(key);
+                        String node = jedis.getClient().getHost() + ":" + jedis.getClient().getPort();
+                        Pipeline pipeline = pipelines.get(node);
+                        if (pipeline == null) {
+                            nodes.put(node, jedis);
+                            pipeline = jedis.pipelined();
+                            pipelines.put(node, pipeline);
+                        } else {
+                            jedis.close();
+                        }
+                        arrayResponses.add(pipeline.bitfield(
+                                array.binaryKeys[segment], BitfieldArguments.get(bySegment[segment])));
+                    }
+                    responses.add(arrayResponses);
+                }
+                for (Pipeline pipeline : pipelines.values()) {
+                    pipeline.sync();
+                }
+            } finally {
+                for (Jedis jedis : nodes.values()) {
+                    jedis.close();
+                }
+            }
+
+            BitSet contained = new BitSet(arrays.size());
+            for (int i = 0; i < responses.size(); i++) {
+                boolean all = true;
+                for (Response<List<Long>> response : responses.get(i)) {
+                    all &= !anyCleared(response.get());
+                }
+                if (all) {
+                    contained.set(i);
+                }
+            }
+            return contained;
         }
 
 //    RedisBitArray copy() {
@@ -307,9 +1617,13 @@ enum BloomFilterStrategies implements BloomFilter.Strategy {
 //        // TODO(lowasser): avoid allocation here
 //        return Arrays.hashCode(toPlainArray(data));
 //    }
-        private String getKey(String actKey, String statType) {
+        private static String getKey(String actKey, String statType) {
             return String.format("bloomFilter_act_%s_statType_%s", actKey, statType);
         }
 
+        private static String getHeaderKey(String actKey, String statType) {
+            return getKey(actKey, statType) + "_header";
+        }
+
     }
 }
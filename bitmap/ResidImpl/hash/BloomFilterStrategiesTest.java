@@ -0,0 +1,138 @@
+package com.bitmap.ResidImpl.hash;
+
+import com.bitmap.ResidImpl.JedisPoolConnectionProvider;
+import com.google.common.base.Charsets;
+import com.google.common.primitives.Longs;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks the strategies of {@link BloomFilterStrategies}: the bit indexes they derive, against an
+ * independent derivation from Guava's murmur3_128, then puts and lookups against an
+ * {@link EmbeddedRedisServer}, in round trips. Run it with {@code main}; a failed check throws an
+ * {@link AssertionError}.
+ */
+public class BloomFilterStrategiesTest {
+    private static final Funnel<CharSequence> FUNNEL = Funnels.stringFunnel(Charsets.UTF_8);
+
+    public static void main(String[] args) throws Exception {
+        bitIndexes();
+        blockedBitIndexes();
+        try (EmbeddedRedisServer server = EmbeddedRedisServer.start()) {
+            JedisPoolConnectionProvider connections = server.newConnectionProvider();
+            for (BloomFilterStrategies strategy : BloomFilterStrategies.values()) {
+                putAndMightContain(server, connections, strategy);
+            }
+        }
+        System.out.println("OK");
+    }
+
+    /**
+     * MURMUR128_MITZ_32 and MURMUR128_MITZ_64 derive the indexes of Guava's own strategies
+     */
+    private static void bitIndexes() {
+        long bitSize = 1000003;
+        int numHashFunctions = 7;
+        for (String element : elements("i", 1000)) {
+            byte[] bytes = com.google.common.hash.Hashing.murmur3_128()
+                    .hashString(element, Charsets.UTF_8).asBytes();
+            long hash1 = Longs.fromBytes(
+                    bytes[7], bytes[6], bytes[5], bytes[4], bytes[3], bytes[2], bytes[1], bytes[0]);
+            long hash2 = Longs.fromBytes(
+                    bytes[15], bytes[14], bytes[13], bytes[12], bytes[11], bytes[10], bytes[9], bytes[8]);
+
+            long[] mitz32 = BloomFilterStrategies.MURMUR128_MITZ_32.bitIndexes(element, FUNNEL, numHashFunctions, bitSize);
+            long[] mitz64 = BloomFilterStrategies.MURMUR128_MITZ_64.bitIndexes(element, FUNNEL, numHashFunctions, bitSize);
+            check(mitz32.length == numHashFunctions, "%s MITZ_32 indexes", mitz32.length);
+            check(mitz64.length == numHashFunctions, "%s MITZ_64 indexes", mitz64.length);
+            long combinedHash = hash1;
+            for (int i = 0; i < numHashFunctions; i++) {
+                int combinedHash32 = (int) hash1 + (i + 1) * (int) (hash1 >>> 32);
+                long expected32 = (combinedHash32 < 0 ? ~combinedHash32 : combinedHash32) % bitSize;
+                check(mitz32[i] == expected32, "MITZ_32 index %s of %s is %s, not %s", i, element, mitz32[i], expected32);
+                long expected64 = (combinedHash & Long.MAX_VALUE) % bitSize;
+                check(mitz64[i] == expected64, "MITZ_64 index %s of %s is %s, not %s", i, element, mitz64[i], expected64);
+                combinedHash += hash2;
+            }
+        }
+    }
+
+    /**
+     * MURMUR128_BLOCKED_512 keeps the indexes of an element in one block, spread over the blocks
+     */
+    private static void blockedBitIndexes() {
+        BloomFilterStrategies strategy = BloomFilterStrategies.MURMUR128_BLOCKED_512;
+        long bitSize = 512 * 1000;
+        boolean[] blocksUsed = new boolean[1000];
+        for (String element : elements("b", 10000)) {
+            long[] bitIndexes = strategy.bitIndexes(element, FUNNEL, 7, bitSize);
+            long block = bitIndexes[0] / BloomFilterStrategies.BLOCK_BITS;
+            for (long bitIndex : bitIndexes) {
+                check(bitIndex >= 0 && bitIndex < bitSize, "index %s of %s out of range", bitIndex, element);
+                check(bitIndex / BloomFilterStrategies.BLOCK_BITS == block, "%s spans blocks", element);
+            }
+            blocksUsed[(int) block] = true;
+        }
+        for (int i = 0; i < blocksUsed.length; i++) {
+            check(blocksUsed[i], "no element falls in block %s", i);
+        }
+        // a filter smaller than a block is a single block of its size
+        for (String element : elements("s", 1000)) {
+            for (long bitIndex : strategy.bitIndexes(element, FUNNEL, 7, 100)) {
+                check(bitIndex >= 0 && bitIndex < 100, "index %s of %s out of range", bitIndex, element);
+            }
+        }
+    }
+
+    /**
+     * A put and a lookup cost one round trip each, with no false negatives
+     */
+    private static void putAndMightContain(
+            EmbeddedRedisServer server, JedisPoolConnectionProvider connections, BloomFilterStrategies strategy) {
+        double fpp = 0.01;
+        BloomFilter<CharSequence> filter = BloomFilter.create(
+                FUNNEL, 1000, fpp, strategy, connections, 0, false, strategy.name(), "t");
+        List<String> elements = elements("p", 1000);
+        // the first put on a fresh server loads the script, with one more round trip
+        filter.put("warm-up");
+
+        long roundTrips = server.roundTrips();
+        for (String element : elements) {
+            filter.put(element);
+        }
+        check(server.roundTrips() - roundTrips == elements.size(),
+                "%s: %s round trips for %s puts", strategy, server.roundTrips() - roundTrips, elements.size());
+
+        roundTrips = server.roundTrips();
+        for (String element : elements) {
+            check(filter.mightContain(element), "%s: %s is missing", strategy, element);
+        }
+        check(server.roundTrips() - roundTrips == elements.size(),
+                "%s: %s round trips for %s lookups", strategy, server.roundTrips() - roundTrips, elements.size());
+
+        int falsePositives = 0;
+        List<String> absent = elements("a", 10000);
+        for (String element : absent) {
+            if (filter.mightContain(element)) {
+                falsePositives++;
+            }
+        }
+        check(falsePositives < 3 * fpp * absent.size(),
+                "%s: %s false positives in %s", strategy, falsePositives, absent.size());
+    }
+
+    private static List<String> elements(String prefix, int count) {
+        List<String> elements = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++) {
+            elements.add(prefix + i);
+        }
+        return elements;
+    }
+
+    private static void check(boolean condition, String message, Object... args) {
+        if (!condition) {
+            throw new AssertionError(String.format(message, args));
+        }
+    }
+}
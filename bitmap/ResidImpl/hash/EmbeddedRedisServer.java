@@ -0,0 +1,1221 @@
+package com.bitmap.ResidImpl.hash;
+
+import com.bitmap.ResidImpl.JedisPoolConnectionProvider;
+import com.bitmap.ResidImpl.hash.BloomFilterStrategies.RedisBitArray;
+import com.google.common.annotations.Beta;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import javax.annotation.Nullable;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * An in-process stand-in for a single redis node, speaking RESP on a loopback port, to test and
+ * benchmark the Redis-backed filters without a redis. It implements the commands the filters send:
+ * the bit commands (SETBIT, GETBIT, BITCOUNT, STRLEN, GETRANGE, SETRANGE, BITOP, BITFIELD), the
+ * header hash commands, key expiry and deletion, and EVAL / EVALSHA of the filters' own scripts,
+ * which are run as Java equivalents; any other script is refused. Commands run one at a time, as on
+ * redis, so scripts are atomic.
+ * <p>
+ * <p>There is no Lua interpreter: every equivalent is pinned to the SHA1 of the Lua source it was
+ * written against, and the server refuses to start once a script no longer matches its pin, so a
+ * script cannot change without its equivalent being revisited.
+ * <p>
+ * <p>An injected latency delays the replies to every burst of requests a connection sends, that is
+ * once per single command and once per pipeline, as a network round trip would; this makes the
+ * gains of pipelining and batching measurable on one machine.
+ */
+@Beta
+public final class EmbeddedRedisServer implements Closeable {
+    /**
+     * Largest string value, as on redis
+     */
+    private static final long MAX_STRING_BYTES = 512L * 1024 * 1024;
+
+    private static final Status OK = new Status("OK");
+    private static final Status PONG = new Status("PONG");
+
+    /**
+     * Reply of QUIT, after which the connection is closed
+     */
+    private static final Status QUIT = new Status("OK");
+
+    private final ServerSocket serverSocket;
+    private final ExecutorService executor =
+            Executors.newCachedThreadPool(
+                    new ThreadFactoryBuilder().setNameFormat("embedded-redis-%d").setDaemon(true).build());
+    private final Set<Socket> clients = Collections.newSetFromMap(new ConcurrentHashMap<Socket, Boolean>());
+
+    private final LongAddable commands = LongAddables.create();
+    private final LongAddable roundTrips = LongAddables.create();
+    private volatile long latencyNanos;
+
+    // guarded by this
+    private final Map<Key, Object> data = new HashMap<Key, Object>();
+    private final Map<Key, Long> expiries = new HashMap<Key, Long>();
+
+    /**
+     * The scripts run by EVAL and EVALSHA, by SHA1
+     */
+    private final Map<String, Script> scripts;
+
+    /**
+     * The SHA1s of the scripts loaded by EVAL or SCRIPT LOAD since the last SCRIPT FLUSH; EVALSHA
+     * of any other script replies NOSCRIPT, as on redis
+     */
+    // guarded by this
+    private final Set<String> loadedScripts = new HashSet<String>();
+
+    private EmbeddedRedisServer(ServerSocket serverSocket) {
+        this.serverSocket = serverSocket;
+        this.scripts = ImmutableMap.<String, Script>builder()
+                .put(emulated(RedisBitArray.CREATE_HEADER_SCRIPT, "a8c1f76d32547b17fba8575548788df0ca9c6ccb"), new Script() {
+                    @Override
+                    public Object run(List<byte[]> keys, List<byte[]> args) {
+                        if (call("HSETNX", keys.get(0), "bitSize", args.get(0)).equals(1L)) {
+                            call("HMSET", keys.get(0),
+                                    "numHashFunctions", args.get(1), "strategy", args.get(2),
+                                    "funnel", args.get(3), "segments", args.get(4), "hashTags", args.get(5));
+                        }
+                        return call("HGETALL", keys.get(0));
+                    }
+                })
+                .put(emulated(RedisBitArray.PREALLOCATE_SCRIPT, "b7e08891a6515359e7f9bcd4ddc175edb749adc3"), new Script() {
+                    @Override
+                    public Object run(List<byte[]> keys, List<byte[]> args) {
+                        long bits = parseLong(args.get(0));
+                        long length = (Long) call("STRLEN", keys.get(0));
+                        if (length == 0) {
+                            call("SET", keys.get(1), 0L);
+                        }
+                        if (length * 8 < bits) {
+                            call("SETBIT", keys.get(0), bits - 1, 0L);
+                        }
+                        return 1L;
+                    }
+                })
+                .put(emulated(RedisBitArray.OR_RANGES_SCRIPT, "1f8d22d8b2cd425e415b4f258ec05463d6e3a174"), new Script() {
+                    @Override
+                    public Object run(List<byte[]> keys, List<byte[]> args) {
+                        long added = 0;
+                        for (int i = 0; i + 1 < args.size(); i += 2) {
+                            long offset = parseLong(args.get(i));
+                            byte[] bits = args.get(i + 1);
+                            byte[] old = (byte[]) call("GETRANGE", keys.get(0), offset, offset + bits.length - 1);
+                            byte[] merged = Arrays.copyOf(bits, bits.length);
+                            for (int j = 0; j < old.length; j++) {
+                                added += Integer.bitCount(merged[j] & ~old[j] & 0xff);
+                                merged[j] |= old[j];
+                            }
+                            for (int j = old.length; j < merged.length; j++) {
+                                added += Integer.bitCount(merged[j] & 0xff);
+                            }
+                            call("SETRANGE", keys.get(0), offset, merged);
+                        }
+                        addToCount(keys.get(1), added);
+                        return added;
+                    }
+                })
+                .put(emulated(RedisBitArray.SET_BITS_SCRIPT, "d2c2284f9b6cde81addea2c2008f4e02140c6abe"), new Script() {
+                    @Override
+                    public Object run(List<byte[]> keys, List<byte[]> args) {
+                        List<byte[]> command = new ArrayList<byte[]>(args.size() + 2);
+                        command.add("BITFIELD".getBytes(Charsets.UTF_8));
+                        command.add(keys.get(0));
+                        command.addAll(args);
+                        long changed = 0;
+                        for (Object old : (List<?>) execute(command)) {
+                            if (Long.valueOf(0).equals(old)) {
+                                changed++;
+                            }
+                        }
+                        addToCount(keys.get(1), changed);
+                        return changed;
+                    }
+                })
+                .put(emulated(RedisBitArray.COUNT_SCRIPT, "b52d3a1a3a3cdf9b84e2ed45ed132dcf31aa16e1"), new Script() {
+                    @Override
+                    public Object run(List<byte[]> keys, List<byte[]> args) {
+                        byte[] count = (byte[]) call("GET", keys.get(1));
+                        if (count == null) {
+                            long bitCount = (Long) call("BITCOUNT", keys.get(0));
+                            call("SET", keys.get(1), bitCount);
+                            return bitCount;
+                        }
+                        return parseLong(count);
+                    }
+                })
+                .put(emulated(RedisBitArray.BITOP_SCRIPT, "f8c090521a4eb2d7c408a0552cee97f1f6a9b4f9"), new Script() {
+                    @Override
+                    public Object run(List<byte[]> keys, List<byte[]> args) {
+                        Object length = call("BITOP", args.get(0), keys.get(0), keys.get(1), keys.get(2));
+                        call("SET", keys.get(3), call("BITCOUNT", keys.get(0)));
+                        return length;
+                    }
+                })
+                .put(emulated(RedisBitArray.UNLINK_SCRIPT, "740d576bcae00d1784c69cf72ee2aeb7153d22ad"), new Script() {
+                    @Override
+                    public Object run(List<byte[]> keys, List<byte[]> args) {
+                        return call("UNLINK", keys.get(0));
+                    }
+                })
+                .build();
+    }
+
+    /**
+     * Returns the SHA1 of {@code script}, checking that it is still {@code emulatedSha1}, the SHA1
+     * of the Lua source its Java equivalent was written against.
+     *
+     * @throws IllegalStateException if the script was edited since
+     */
+    private static String emulated(RedisScript script, String emulatedSha1) {
+        checkState(
+                script.sha1().equals(emulatedSha1),
+                "script %s changed since its Java equivalent was written against %s;"
+                        + " update the equivalent, then its SHA1:\n%s",
+                script.sha1(),
+                emulatedSha1,
+                script.source());
+        return emulatedSha1;
+    }
+
+    /**
+     * Starts a server on an ephemeral loopback port.
+     */
+    public static EmbeddedRedisServer start() throws IOException {
+        return start(0);
+    }
+
+    /**
+     * Starts a server on the given loopback port, or on an ephemeral one if {@code port} is 0.
+     */
+    public static EmbeddedRedisServer start(int port) throws IOException {
+        checkArgument(port >= 0, "port (%s) must be >= 0", port);
+        ServerSocket serverSocket = new ServerSocket();
+        serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        final EmbeddedRedisServer server = new EmbeddedRedisServer(serverSocket);
+        server.executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                server.accept();
+            }
+        });
+        return server;
+    }
+
+    public String getHost() {
+        return serverSocket.getInetAddress().getHostAddress();
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Returns a new pool of connections to this server, which the caller must close.
+     */
+    public JedisPoolConnectionProvider newConnectionProvider() {
+        return new JedisPoolConnectionProvider(getHost(), getPort());
+    }
+
+    /**
+     * Sets the delay added to every round trip; 0 removes it.
+     */
+    public void setLatency(long latency, TimeUnit unit) {
+        checkArgument(latency >= 0, "latency (%s) must be >= 0", latency);
+        this.latencyNanos = unit.toNanos(latency);
+    }
+
+    /**
+     * Number of commands received, those run by scripts excluded
+     */
+    public long commands() {
+        return commands.sum();
+    }
+
+    /**
+     * Number of bursts of requests received, each answered after one injected latency
+     */
+    public long roundTrips() {
+        return roundTrips.sum();
+    }
+
+    /**
+     * Deletes every key.
+     */
+    public synchronized void flushAll() {
+        data.clear();
+        expiries.clear();
+    }
+
+    /**
+     * Stops accepting connections and closes those open. The data is dropped.
+     */
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        for (Socket client : clients) {
+            client.close();
+        }
+        executor.shutdownNow();
+    }
+
+    private void accept() {
+        while (!serverSocket.isClosed()) {
+            final Socket client;
+            try {
+                client = serverSocket.accept();
+            } catch (IOException e) {
+                // closed
+                return;
+            }
+            clients.add(client);
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        serve(client);
+                    } catch (IOException e) {
+                        // the client went away
+                    } finally {
+                        clients.remove(client);
+                        try {
+                            client.close();
+                        } catch (IOException e) {
+                            // already closed
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Answers the commands of {@code client} until it quits or disconnects. Replies are flushed once
+     * no more requests are buffered, so a pipeline is answered in one go.
+     */
+    private void serve(Socket client) throws IOException {
+        client.setTcpNoDelay(true);
+        InputStream in = new BufferedInputStream(client.getInputStream());
+        OutputStream out = new BufferedOutputStream(client.getOutputStream());
+        boolean inBurst = false;
+        while (true) {
+            List<byte[]> command = readCommand(in);
+            if (command == null) {
+                return;
+            }
+            if (command.isEmpty()) {
+                continue;
+            }
+            if (!inBurst) {
+                inBurst = true;
+                roundTrips.increment();
+                try {
+                    TimeUnit.NANOSECONDS.sleep(latencyNanos);
+                } catch (InterruptedException e) {
+                    // closing
+                    return;
+                }
+            }
+            commands.increment();
+            Object reply;
+            try {
+                reply = execute(command);
+            } catch (RedisError e) {
+                reply = e;
+            }
+            writeReply(out, reply);
+            if (reply == QUIT) {
+                out.flush();
+                return;
+            }
+            if (in.available() == 0) {
+                out.flush();
+                inBurst = false;
+            }
+        }
+    }
+
+    /**
+     * Runs one command, given as its name followed by its arguments.
+     */
+    private synchronized Object execute(List<byte[]> command) {
+        String name = new String(command.get(0), Charsets.UTF_8).toUpperCase(Locale.ROOT);
+        List<byte[]> args = command.subList(1, command.size());
+        switch (name) {
+            case "PING":
+                return args.isEmpty() ? PONG : args.get(0);
+            case "ECHO":
+                arity(name, args, 1, 1);
+                return args.get(0);
+            case "QUIT":
+                return QUIT;
+            case "SELECT":
+                arity(name, args, 1, 1);
+                if (parseLong(args.get(0)) != 0) {
+                    throw new RedisError("ERR DB index is out of range");
+                }
+                return OK;
+            case "FLUSHALL":
+            case "FLUSHDB":
+                flushAll();
+                return OK;
+            case "DBSIZE":
+                return dbSize();
+            case "EXISTS":
+                arity(name, args, 1, Integer.MAX_VALUE);
+                return exists(args);
+            case "DEL":
+            case "UNLINK":
+                arity(name, args, 1, Integer.MAX_VALUE);
+                return delete(args);
+            case "EXPIRE":
+                arity(name, args, 2, 2);
+                return expireAt(args.get(0), System.currentTimeMillis() + parseLong(args.get(1)) * 1000);
+            case "PEXPIRE":
+                arity(name, args, 2, 2);
+                return expireAt(args.get(0), System.currentTimeMillis() + parseLong(args.get(1)));
+            case "EXPIREAT":
+                arity(name, args, 2, 2);
+                return expireAt(args.get(0), parseLong(args.get(1)) * 1000);
+            case "PEXPIREAT":
+                arity(name, args, 2, 2);
+                return expireAt(args.get(0), parseLong(args.get(1)));
+            case "TTL":
+                arity(name, args, 1, 1);
+                long ttl = pttl(args.get(0));
+                return ttl < 0 ? ttl : (ttl + 500) / 1000;
+            case "PTTL":
+                arity(name, args, 1, 1);
+                return pttl(args.get(0));
+            case "GET":
+                arity(name, args, 1, 1);
+                return get(args.get(0));
+            case "SET":
+                arity(name, args, 2, 2);
+                return set(args.get(0), args.get(1));
+            case "INCR":
+                arity(name, args, 1, 1);
+                return incrBy(args.get(0), 1);
+            case "INCRBY":
+                arity(name, args, 2, 2);
+                return incrBy(args.get(0), parseLong(args.get(1)));
+            case "STRLEN":
+                arity(name, args, 1, 1);
+                return strlen(args.get(0));
+            case "GETRANGE":
+                arity(name, args, 3, 3);
+                return getRange(args.get(0), parseLong(args.get(1)), parseLong(args.get(2)));
+            case "SETRANGE":
+                arity(name, args, 3, 3);
+                return setRange(args.get(0), parseLong(args.get(1)), args.get(2));
+            case "SETBIT":
+                arity(name, args, 3, 3);
+                return setBit(args.get(0), parseLong(args.get(1)), args.get(2));
+            case "GETBIT":
+                arity(name, args, 2, 2);
+                return getBit(args.get(0), parseLong(args.get(1)));
+            case "BITCOUNT":
+                arity(name, args, 1, 3);
+                if (args.size() == 2) {
+                    throw new RedisError("ERR syntax error");
+                }
+                return args.size() == 1
+                        ? bitCount(args.get(0), 0, -1)
+                        : bitCount(args.get(0), parseLong(args.get(1)), parseLong(args.get(2)));
+            case "BITOP":
+                arity(name, args, 3, Integer.MAX_VALUE);
+                return bitop(args.get(0), args.get(1), args.subList(2, args.size()));
+            case "BITFIELD":
+                arity(name, args, 1, Integer.MAX_VALUE);
+                return bitfield(args.get(0), args.subList(1, args.size()));
+            case "HSET":
+                if (args.size() < 3 || args.size() % 2 == 0) {
+                    throw wrongArity(name);
+                }
+                return hset(args.get(0), args.subList(1, args.size()), true);
+            case "HMSET":
+                if (args.size() < 3 || args.size() % 2 == 0) {
+                    throw wrongArity(name);
+                }
+                hset(args.get(0), args.subList(1, args.size()), true);
+                return OK;
+            case "HSETNX":
+                arity(name, args, 3, 3);
+                return hset(args.get(0), args.subList(1, 3), false);
+            case "HGET":
+                arity(name, args, 2, 2);
+                return hget(args.get(0), args.get(1));
+            case "HGETALL":
+                arity(name, args, 1, 1);
+                return hgetAll(args.get(0));
+            case "EVAL":
+                arity(name, args, 2, Integer.MAX_VALUE);
+                String sha = RedisScript.sha1(args.get(0));
+                if (scripts.containsKey(sha)) {
+                    loadedScripts.add(sha);
+                }
+                return eval(sha, args.subList(1, args.size()));
+            case "EVALSHA":
+                arity(name, args, 2, Integer.MAX_VALUE);
+                return eval(new String(args.get(0), Charsets.UTF_8).toLowerCase(Locale.ROOT), args.subList(1, args.size()));
+            case "SCRIPT":
+                arity(name, args, 1, Integer.MAX_VALUE);
+                return script(args);
+            default:
+                throw new RedisError("ERR unknown command '" + name + "'");
+        }
+    }
+
+    /**
+     * Runs a command from a script, like {@code redis.call}. Arguments may be byte arrays, strings
+     * or numbers.
+     */
+    private Object call(Object... command) {
+        List<byte[]> encoded = new ArrayList<byte[]>(command.length);
+        for (Object argument : command) {
+            encoded.add(argument instanceof byte[]
+                    ? (byte[]) argument
+                    : String.valueOf(argument).getBytes(Charsets.UTF_8));
+        }
+        return execute(encoded);
+    }
+
+    /**
+     * Adds {@code changed} to the count of set bits at {@code countKey} if there is one, as the
+     * scripts that set bits do.
+     */
+    private void addToCount(byte[] countKey, long changed) {
+        if (changed > 0 && (Long) call("EXISTS", countKey) == 1) {
+            call("INCRBY", countKey, changed);
+        }
+    }
+
+    // keys
+
+    /**
+     * Returns the value of {@code key}, dropping it first if it has expired.
+     */
+    @Nullable
+    private Object lookup(Key key) {
+        Long expiry = expiries.get(key);
+        if (expiry != null && expiry <= System.currentTimeMillis()) {
+            expiries.remove(key);
+            data.remove(key);
+            return null;
+        }
+        return data.get(key);
+    }
+
+    private long dbSize() {
+        long size = 0;
+        for (Key key : new ArrayList<Key>(data.keySet())) {
+            if (lookup(key) != null) {
+                size++;
+            }
+        }
+        return size;
+    }
+
+    private long exists(List<byte[]> keys) {
+        long count = 0;
+        for (byte[] key : keys) {
+            if (lookup(new Key(key)) != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private long delete(List<byte[]> keys) {
+        long count = 0;
+        for (byte[] key : keys) {
+            Key k = new Key(key);
+            if (lookup(k) != null) {
+                data.remove(k);
+                expiries.remove(k);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private long expireAt(byte[] key, long millis) {
+        Key k = new Key(key);
+        if (lookup(k) == null) {
+            return 0;
+        }
+        expiries.put(k, millis);
+        lookup(k);
+        return 1;
+    }
+
+    private long pttl(byte[] key) {
+        Key k = new Key(key);
+        if (lookup(k) == null) {
+            return -2;
+        }
+        Long expiry = expiries.get(k);
+        return expiry == null ? -1 : expiry - System.currentTimeMillis();
+    }
+
+    /**
+     * Stores a new value under {@code key}, clearing its expiry.
+     */
+    private void store(Key key, Object value) {
+        data.put(key, value);
+        expiries.remove(key);
+    }
+
+    // strings
+
+    /**
+     * Returns the string at {@code key}, or {@code null} if there is none and {@code create} is not
+     * set.
+     */
+    @Nullable
+    private Bytes string(byte[] key, boolean create) {
+        Key k = new Key(key);
+        Object value = lookup(k);
+        if (value == null) {
+            if (!create) {
+                return null;
+            }
+            Bytes created = new Bytes();
+            data.put(k, created);
+            return created;
+        }
+        if (!(value instanceof Bytes)) {
+            throw wrongType();
+        }
+        return (Bytes) value;
+    }
+
+    @Nullable
+    private byte[] get(byte[] key) {
+        Bytes value = string(key, false);
+        return value == null ? null : value.toArray();
+    }
+
+    private Status set(byte[] key, byte[] value) {
+        Bytes bytes = new Bytes();
+        bytes.write(0, value);
+        store(new Key(key), bytes);
+        return OK;
+    }
+
+    private long incrBy(byte[] key, long increment) {
+        Bytes value = string(key, true);
+        long current;
+        try {
+            current = value.length == 0 ? 0 : Long.parseLong(new String(value.toArray(), Charsets.UTF_8));
+        } catch (NumberFormatException e) {
+            throw new RedisError("ERR value is not an integer or out of range");
+        }
+        long result = current + increment;
+        if (((current ^ result) & (increment ^ result)) < 0) {
+            throw new RedisError("ERR increment or decrement would overflow");
+        }
+        byte[] digits = Long.toString(result).getBytes(Charsets.UTF_8);
+        value.length = 0;
+        Arrays.fill(value.data, (byte) 0);
+        value.write(0, digits);
+        return result;
+    }
+
+    private long strlen(byte[] key) {
+        Bytes value = string(key, false);
+        return value == null ? 0 : value.length;
+    }
+
+    private byte[] getRange(byte[] key, long start, long end) {
+        Bytes value = string(key, false);
+        if (value == null) {
+            return new byte[0];
+        }
+        long[] range = range(start, end, value.length);
+        return range == null ? new byte[0] : Arrays.copyOfRange(value.data, (int) range[0], (int) range[1] + 1);
+    }
+
+    private long setRange(byte[] key, long offset, byte[] bytes) {
+        if (offset < 0) {
+            throw new RedisError("ERR offset is out of range");
+        }
+        if (offset + bytes.length > MAX_STRING_BYTES) {
+            throw new RedisError("ERR string exceeds maximum allowed size (512MB)");
+        }
+        Bytes value = string(key, bytes.length > 0);
+        if (value == null) {
+            return 0;
+        }
+        value.write((int) offset, bytes);
+        return value.length;
+    }
+
+    private long setBit(byte[] key, long offset, byte[] bit) {
+        checkBitOffset(offset);
+        long value = parseLong(bit);
+        if (value != 0 && value != 1) {
+            throw new RedisError("ERR bit is not an integer or out of range");
+        }
+        Bytes bytes = string(key, true);
+        long old = bytes.bit(offset);
+        bytes.setBit(offset, value == 1);
+        return old;
+    }
+
+    private long getBit(byte[] key, long offset) {
+        checkBitOffset(offset);
+        Bytes value = string(key, false);
+        return value == null ? 0 : value.bit(offset);
+    }
+
+    private long bitCount(byte[] key, long start, long end) {
+        Bytes value = string(key, false);
+        if (value == null) {
+            return 0;
+        }
+        long[] range = range(start, end, value.length);
+        long count = 0;
+        if (range != null) {
+            for (int i = (int) range[0]; i <= range[1]; i++) {
+                count += Integer.bitCount(value.data[i] & 0xff);
+            }
+        }
+        return count;
+    }
+
+    private long bitop(byte[] operation, byte[] destination, List<byte[]> keys) {
+        String op = new String(operation, Charsets.UTF_8).toUpperCase(Locale.ROOT);
+        if (!op.equals("AND") && !op.equals("OR") && !op.equals("XOR") && !op.equals("NOT")) {
+            throw new RedisError("ERR syntax error");
+        }
+        if (op.equals("NOT") && keys.size() != 1) {
+            throw new RedisError("ERR BITOP NOT must be called with a single source key.");
+        }
+        List<Bytes> sources = new ArrayList<Bytes>(keys.size());
+        int length = 0;
+        for (byte[] key : keys) {
+            Bytes source = string(key, false);
+            sources.add(source);
+            length = Math.max(length, source == null ? 0 : source.length);
+        }
+        byte[] result = new byte[length];
+        for (int i = 0; i < length; i++) {
+            int b = byteAt(sources.get(0), i);
+            for (int j = 1; j < sources.size(); j++) {
+                int other = byteAt(sources.get(j), i);
+                switch (op) {
+                    case "AND":
+                        b &= other;
+                        break;
+                    case "OR":
+                        b |= other;
+                        break;
+                    default:
+                        b ^= other;
+                        break;
+                }
+            }
+            if (op.equals("NOT")) {
+                b = ~b;
+            }
+            result[i] = (byte) b;
+        }
+        Key k = new Key(destination);
+        if (length == 0) {
+            data.remove(k);
+            expiries.remove(k);
+        } else {
+            Bytes bytes = new Bytes();
+            bytes.write(0, result);
+            store(k, bytes);
+        }
+        return length;
+    }
+
+    /**
+     * Runs the GET, SET and INCRBY operations of a BITFIELD call, with the WRAP, SAT and FAIL
+     * overflow modes. A call of GETs only never creates the key.
+     */
+    private List<Long> bitfield(byte[] key, List<byte[]> operations) {
+        // parse everything first, so a syntax error changes nothing
+        List<Object[]> parsed = new ArrayList<Object[]>();
+        String overflow = "WRAP";
+        boolean writes = false;
+        for (int i = 0; i < operations.size(); ) {
+            String op = new String(operations.get(i), Charsets.UTF_8).toUpperCase(Locale.ROOT);
+            if (op.equals("OVERFLOW")) {
+                checkOperands(operations, i, 1);
+                overflow = new String(operations.get(i + 1), Charsets.UTF_8).toUpperCase(Locale.ROOT);
+                if (!overflow.equals("WRAP") && !overflow.equals("SAT") && !overflow.equals("FAIL")) {
+                    throw new RedisError("ERR Invalid OVERFLOW type specified");
+                }
+                i += 2;
+                continue;
+            }
+            boolean get = op.equals("GET");
+            if (!get && !op.equals("SET") && !op.equals("INCRBY")) {
+                throw new RedisError("ERR syntax error");
+            }
+            checkOperands(operations, i, get ? 2 : 3);
+            String type = new String(operations.get(i + 1), Charsets.UTF_8);
+            boolean signed = type.startsWith("i") || type.startsWith("I");
+            if (!signed && !type.startsWith("u") && !type.startsWith("U")) {
+                throw invalidBitfieldType();
+            }
+            int width;
+            try {
+                width = Integer.parseInt(type.substring(1));
+            } catch (NumberFormatException e) {
+                throw invalidBitfieldType();
+            }
+            if (width < 1 || width > (signed ? 64 : 63)) {
+                throw invalidBitfieldType();
+            }
+            String offsetArgument = new String(operations.get(i + 2), Charsets.UTF_8);
+            long offset = offsetArgument.startsWith("#")
+                    ? parseLong(offsetArgument.substring(1).getBytes(Charsets.UTF_8)) * width
+                    : parseLong(operations.get(i + 2));
+            if (offset < 0 || offset + width > 8 * MAX_STRING_BYTES) {
+                throw new RedisError("ERR bit offset is not an integer or out of range");
+            }
+            long operand = get ? 0 : parseLong(operations.get(i + 3));
+            parsed.add(new Object[] {op, signed, width, offset, operand, overflow});
+            writes |= !get;
+            i += get ? 3 : 4;
+        }
+
+        Bytes value = string(key, writes);
+        List<Long> replies = new ArrayList<Long>(parsed.size());
+        for (Object[] operation : parsed) {
+            String op = (String) operation[0];
+            boolean signed = (Boolean) operation[1];
+            int width = (Integer) operation[2];
+            long offset = (Long) operation[3];
+            long operand = (Long) operation[4];
+            long old = value == null ? 0 : value.field(offset, width, signed);
+            if (op.equals("GET")) {
+                replies.add(old);
+                continue;
+            }
+            BigInteger target = op.equals("SET")
+                    ? BigInteger.valueOf(operand)
+                    : BigInteger.valueOf(old).add(BigInteger.valueOf(operand));
+            Long fitted = fit(target, signed, width, (String) operation[5]);
+            if (fitted != null) {
+                value.setField(offset, width, fitted);
+            }
+            replies.add(op.equals("SET") && fitted != null ? old : fitted);
+        }
+        return replies;
+    }
+
+    /**
+     * Returns {@code value} brought into the range of a field, or {@code null} if it overflows and
+     * {@code overflow} is FAIL.
+     */
+    @Nullable
+    private static Long fit(BigInteger value, boolean signed, int width, String overflow) {
+        BigInteger min = signed ? BigInteger.ONE.shiftLeft(width - 1).negate() : BigInteger.ZERO;
+        BigInteger max = signed
+                ? BigInteger.ONE.shiftLeft(width - 1).subtract(BigInteger.ONE)
+                : BigInteger.ONE.shiftLeft(width).subtract(BigInteger.ONE);
+        if (value.compareTo(min) >= 0 && value.compareTo(max) <= 0) {
+            return value.longValue();
+        }
+        switch (overflow) {
+            case "SAT":
+                return (value.signum() < 0 ? min : max).longValue();
+            case "FAIL":
+                return null;
+            default:
+                BigInteger wrapped = value.mod(BigInteger.ONE.shiftLeft(width));
+                if (signed && wrapped.compareTo(max) > 0) {
+                    wrapped = wrapped.subtract(BigInteger.ONE.shiftLeft(width));
+                }
+                return wrapped.longValue();
+        }
+    }
+
+    // hashes
+
+    @Nullable
+    private Map<Key, byte[]> hash(byte[] key, boolean create) {
+        Key k = new Key(key);
+        Object value = lookup(k);
+        if (value == null) {
+            if (!create) {
+                return null;
+            }
+            Map<Key, byte[]> created = new LinkedHashMap<Key, byte[]>();
+            data.put(k, created);
+            return created;
+        }
+        if (!(value instanceof Map)) {
+            throw wrongType();
+        }
+        @SuppressWarnings("unchecked")
+        Map<Key, byte[]> hash = (Map<Key, byte[]>) value;
+        return hash;
+    }
+
+    /**
+     * Sets the given field / value pairs, only the fields not set yet unless {@code overwrite}.
+     * Returns the number of fields added.
+     */
+    private long hset(byte[] key, List<byte[]> fieldsAndValues, boolean overwrite) {
+        Map<Key, byte[]> hash = hash(key, true);
+        long added = 0;
+        for (int i = 0; i < fieldsAndValues.size(); i += 2) {
+            Key field = new Key(fieldsAndValues.get(i));
+            boolean present = hash.containsKey(field);
+            if (!present || overwrite) {
+                hash.put(field, fieldsAndValues.get(i + 1));
+            }
+            if (!present) {
+                added++;
+            }
+        }
+        return added;
+    }
+
+    @Nullable
+    private byte[] hget(byte[] key, byte[] field) {
+        Map<Key, byte[]> hash = hash(key, false);
+        return hash == null ? null : hash.get(new Key(field));
+    }
+
+    private List<byte[]> hgetAll(byte[] key) {
+        Map<Key, byte[]> hash = hash(key, false);
+        List<byte[]> reply = new ArrayList<byte[]>();
+        if (hash != null) {
+            for (Map.Entry<Key, byte[]> entry : hash.entrySet()) {
+                reply.add(entry.getKey().bytes);
+                reply.add(entry.getValue());
+            }
+        }
+        return reply;
+    }
+
+    // scripts
+
+    private Object eval(String sha, List<byte[]> args) {
+        long numKeys = parseLong(args.get(0));
+        if (numKeys < 0 || numKeys > args.size() - 1) {
+            throw new RedisError("ERR Number of keys can't be greater than number of args");
+        }
+        Script script = loadedScripts.contains(sha) ? scripts.get(sha) : null;
+        if (script == null) {
+            throw new RedisError("NOSCRIPT No matching script. Please use EVAL.");
+        }
+        List<byte[]> keys = args.subList(1, 1 + (int) numKeys);
+        return script.run(keys, args.subList(1 + (int) numKeys, args.size()));
+    }
+
+    private Object script(List<byte[]> args) {
+        String subcommand = new String(args.get(0), Charsets.UTF_8).toUpperCase(Locale.ROOT);
+        switch (subcommand) {
+            case "LOAD":
+                arity("SCRIPT LOAD", args, 2, 2);
+                String sha = RedisScript.sha1(args.get(1));
+                if (!scripts.containsKey(sha)) {
+                    throw new RedisError("ERR unsupported script, only the scripts of the filters are emulated");
+                }
+                loadedScripts.add(sha);
+                return sha.getBytes(Charsets.UTF_8);
+            case "EXISTS":
+                List<Long> exists = new ArrayList<Long>();
+                for (byte[] candidate : args.subList(1, args.size())) {
+                    exists.add(loadedScripts.contains(new String(candidate, Charsets.UTF_8).toLowerCase(Locale.ROOT)) ? 1L : 0L);
+                }
+                return exists;
+            case "FLUSH":
+                loadedScripts.clear();
+                return OK;
+            default:
+                throw new RedisError("ERR unknown SCRIPT subcommand '" + subcommand + "'");
+        }
+    }
+
+    // protocol
+
+    /**
+     * Reads one command, as a RESP array of bulk strings or as an inline command. Returns
+     * {@code null} at the end of the stream.
+     */
+    @Nullable
+    private static List<byte[]> readCommand(InputStream in) throws IOException {
+        int first = in.read();
+        if (first == -1) {
+            return null;
+        }
+        List<byte[]> command = new ArrayList<byte[]>();
+        if (first != '*') {
+            for (String part : ((char) first + readLine(in)).trim().split("\\s+")) {
+                if (!part.isEmpty()) {
+                    command.add(part.getBytes(Charsets.UTF_8));
+                }
+            }
+            return command;
+        }
+        int count = parseLength(readLine(in));
+        for (int i = 0; i < count; i++) {
+            if (in.read() != '$') {
+                throw new IOException("Protocol error: expected '$'");
+            }
+            byte[] argument = new byte[parseLength(readLine(in))];
+            ByteStreams.readFully(in, argument);
+            if (in.read() != '\r' || in.read() != '\n') {
+                throw new IOException("Protocol error: expected CRLF");
+            }
+            command.add(argument);
+        }
+        return command;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        for (int c = in.read(); c != '\n'; c = in.read()) {
+            if (c == -1) {
+                throw new EOFException();
+            }
+            if (c != '\r') {
+                line.append((char) c);
+            }
+        }
+        return line.toString();
+    }
+
+    private static int parseLength(String line) throws IOException {
+        try {
+            return Integer.parseInt(line);
+        } catch (NumberFormatException e) {
+            throw new IOException("Protocol error: invalid length " + line);
+        }
+    }
+
+    private static void writeReply(OutputStream out, @Nullable Object reply) throws IOException {
+        if (reply == null) {
+            writeLine(out, "$-1");
+        } else if (reply instanceof Long) {
+            writeLine(out, ":" + reply);
+        } else if (reply instanceof byte[]) {
+            byte[] bytes = (byte[]) reply;
+            writeLine(out, "$" + bytes.length);
+            out.write(bytes);
+            writeLine(out, "");
+        } else if (reply instanceof Status) {
+            writeLine(out, "+" + ((Status) reply).text);
+        } else if (reply instanceof RedisError) {
+            writeLine(out, "-" + ((RedisError) reply).getMessage());
+        } else {
+            List<?> elements = (List<?>) reply;
+            writeLine(out, "*" + elements.size());
+            for (Object element : elements) {
+                writeReply(out, element);
+            }
+        }
+    }
+
+    private static void writeLine(OutputStream out, String line) throws IOException {
+        out.write(line.getBytes(Charsets.UTF_8));
+        out.write('\r');
+        out.write('\n');
+    }
+
+    // arguments
+
+    private static long parseLong(byte[] argument) {
+        try {
+            return Long.parseLong(new String(argument, Charsets.UTF_8));
+        } catch (NumberFormatException e) {
+            throw new RedisError("ERR value is not an integer or out of range");
+        }
+    }
+
+    private static void arity(String command, List<byte[]> args, int min, int max) {
+        if (args.size() < min || args.size() > max) {
+            throw wrongArity(command);
+        }
+    }
+
+    private static void checkOperands(List<byte[]> operations, int index, int operands) {
+        if (index + operands >= operations.size()) {
+            throw new RedisError("ERR syntax error");
+        }
+    }
+
+    private static void checkBitOffset(long offset) {
+        if (offset < 0 || offset >= 8 * MAX_STRING_BYTES) {
+            throw new RedisError("ERR bit offset is not an integer or out of range");
+        }
+    }
+
+    /**
+     * Returns the inclusive byte range {@code start..end} of a string of {@code length} bytes,
+     * negative indexes counting from the end, or {@code null} if it is empty.
+     */
+    @Nullable
+    private static long[] range(long start, long end, long length) {
+        if (start < 0) {
+            start = Math.max(0, start + length);
+        }
+        if (end < 0) {
+            end += length;
+        }
+        end = Math.min(end, length - 1);
+        return start > end ? null : new long[] {start, end};
+    }
+
+    private static int byteAt(@Nullable Bytes bytes, int index) {
+        return bytes == null || index >= bytes.length ? 0 : bytes.data[index] & 0xff;
+    }
+
+    private static RedisError wrongArity(String command) {
+        return new RedisError("ERR wrong number of arguments for '" + command.toLowerCase(Locale.ROOT) + "' command");
+    }
+
+    private static RedisError wrongType() {
+        return new RedisError("WRONGTYPE Operation against a key holding the wrong kind of value");
+    }
+
+    private static RedisError invalidBitfieldType() {
+        return new RedisError("ERR Invalid bitfield type. Use something like i16 u8. Note that u64 is not supported but i64 is.");
+    }
+
+    /**
+     * A script run by EVAL, emulating one of the filters' Lua scripts
+     */
+    private interface Script {
+        Object run(List<byte[]> keys, List<byte[]> args);
+    }
+
+    /**
+     * A string value. Bytes past {@code length} are always zero, so growing only moves the length.
+     */
+    private static final class Bytes {
+        byte[] data = new byte[0];
+        int length;
+
+        void grow(long newLength) {
+            if (newLength <= length) {
+                return;
+            }
+            if (newLength > data.length) {
+                data = Arrays.copyOf(data, (int) Math.min(MAX_STRING_BYTES, Math.max(newLength, 2L * data.length)));
+            }
+            length = (int) newLength;
+        }
+
+        void write(int offset, byte[] bytes) {
+            grow((long) offset + bytes.length);
+            System.arraycopy(bytes, 0, data, offset, bytes.length);
+        }
+
+        long bit(long offset) {
+            int index = (int) (offset >>> 3);
+            return index < length && (data[index] & (0x80 >>> (offset & 7))) != 0 ? 1 : 0;
+        }
+
+        void setBit(long offset, boolean value) {
+            int index = (int) (offset >>> 3);
+            grow(index + 1);
+            if (value) {
+                data[index] |= 0x80 >>> (offset & 7);
+            } else {
+                data[index] &= ~(0x80 >>> (offset & 7));
+            }
+        }
+
+        /**
+         * Reads the {@code width} bits from bit {@code offset}, most significant first.
+         */
+        long field(long offset, int width, boolean signed) {
+            long value = 0;
+            for (int i = 0; i < width; i++) {
+                value = value << 1 | bit(offset + i);
+            }
+            if (signed && width < Long.SIZE) {
+                value = value << (Long.SIZE - width) >> (Long.SIZE - width);
+            }
+            return value;
+        }
+
+        void setField(long offset, int width, long value) {
+            for (int i = 0; i < width; i++) {
+                setBit(offset + i, (value >>> (width - 1 - i) & 1) != 0);
+            }
+        }
+
+        byte[] toArray() {
+            return Arrays.copyOf(data, length);
+        }
+    }
+
+    private static final class Key {
+        final byte[] bytes;
+        private final int hashCode;
+
+        Key(byte[] bytes) {
+            this.bytes = bytes;
+            this.hashCode = Arrays.hashCode(bytes);
+        }
+
+        @Override
+        public boolean equals(@Nullable Object object) {
+            return object instanceof Key && Arrays.equals(bytes, ((Key) object).bytes);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+
+    private static final class Status {
+        final String text;
+
+        Status(String text) {
+            this.text = text;
+        }
+    }
+
+    private static final class RedisError extends RuntimeException {
+        private static final long serialVersionUID = 0L;
+
+        RedisError(String message) {
+            super(message);
+        }
+    }
+}
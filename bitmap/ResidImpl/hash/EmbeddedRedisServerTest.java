@@ -0,0 +1,303 @@
+package com.bitmap.ResidImpl.hash;
+
+import com.bitmap.ResidImpl.JedisPoolConnectionProvider;
+import com.bitmap.ResidImpl.hash.BloomFilterStrategies.RedisBitArray;
+import com.google.common.base.Charsets;
+import com.google.common.base.Stopwatch;
+import redis.clients.jedis.Jedis;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drives the Redis-backed filters through an {@link EmbeddedRedisServer}: every script the filters
+ * run is exercised through the public API and its effect checked with plain commands, then the
+ * cost of a put is measured in round trips and time under an injected latency. Run it with
+ * {@code main}; a failed check throws an {@link AssertionError}.
+ */
+public class EmbeddedRedisServerTest {
+    private static final Funnel<CharSequence> FUNNEL = Funnels.stringFunnel(Charsets.UTF_8);
+
+    public static void main(String[] args) throws Exception {
+        try (EmbeddedRedisServer server = EmbeddedRedisServer.start()) {
+            JedisPoolConnectionProvider connections = server.newConnectionProvider();
+            createHeaderAndPreallocate(server, connections);
+            setBitsAndCount(server, connections);
+            orRanges(server, connections);
+            replica(connections);
+            bitop(server, connections);
+            unlink(server, connections);
+            scriptFlush(server, connections);
+
+            server.flushAll();
+            benchmark(server, connections);
+        }
+        System.out.println("OK");
+    }
+
+    /**
+     * CREATE_HEADER_SCRIPT and PREALLOCATE_SCRIPT
+     */
+    private static void createHeaderAndPreallocate(EmbeddedRedisServer server, JedisPoolConnectionProvider connections) {
+        BloomFilter<CharSequence> filter = BloomFilter.create(FUNNEL, 10000, 0.01, connections, "header", "t");
+        BloomFilter<CharSequence> reopened = BloomFilter.open(FUNNEL, connections, "header", "t");
+        check(reopened.bitSize() == filter.bitSize(), "reopened with %s bits, not %s", reopened.bitSize(), filter.bitSize());
+        try {
+            BloomFilter.create(FUNNEL, 20000, 0.01, connections, "header", "t");
+            throw new AssertionError("created a filter over one of another geometry");
+        } catch (IllegalArgumentException expected) {
+        }
+        try (Jedis jedis = jedis(server)) {
+            String key = "bloomFilter_act_header_statType_t";
+            check(jedis.strlen(key) * 8 == filter.bitSize(), "preallocated %s bytes", jedis.strlen(key));
+            check("0".equals(jedis.get("{" + key + "}_count")), "count %s", jedis.get("{" + key + "}_count"));
+
+            // bits written before the header was indexed by another size
+            jedis.setbit("bloomFilter_act_legacy_statType_t", 1000, true);
+        }
+        try {
+            BloomFilter.create(FUNNEL, 10000, 0.01, connections, "legacy", "t");
+            throw new AssertionError("created a header over bits written without one");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    /**
+     * SET_BITS_SCRIPT and COUNT_SCRIPT, on a segmented filter
+     */
+    private static void setBitsAndCount(EmbeddedRedisServer server, JedisPoolConnectionProvider connections) {
+        BloomFilter<CharSequence> filter = BloomFilter.create(FUNNEL, 10000, 0.01, connections, 4, true, "set", "t");
+        check(filter.put("a"), "a was not new");
+        check(!filter.put("a"), "a was new twice");
+        check(filter.mightContain("a"), "a is missing");
+        List<String> elements = elements("x", 1000);
+        check(filter.putAll(elements).cardinality() == 1000, "not every element was new");
+        check(filter.putAll(elements).isEmpty(), "an element was new twice");
+        check(filter.mightContainAll(elements).cardinality() == 1000, "an element is missing");
+
+        long bitCount = 0;
+        long counted = 0;
+        String[] keys = RedisBitArray.segmentKeys("bloomFilter_act_set_statType_t", 4, true);
+        try (Jedis jedis = jedis(server)) {
+            for (String key : keys) {
+                bitCount += jedis.bitcount(key);
+                counted += Long.parseLong(jedis.get(RedisBitArray.countKey(key)));
+            }
+            check(counted == bitCount, "the scripts counted %s bits, not %s", counted, bitCount);
+            check(filter.bits().bitCount() == bitCount, "read a count of %s bits, not %s", filter.bits().bitCount(), bitCount);
+            // a segment without a count is counted in full, once
+            jedis.del(RedisBitArray.countKey(keys[0]));
+            check(filter.bits().bitCount() == bitCount, "recounted %s bits, not %s", filter.bits().bitCount(), bitCount);
+            check(jedis.exists(RedisBitArray.countKey(keys[0])), "the recount was not stored");
+        }
+        long estimate = filter.approximateElementCount();
+        check(Math.abs(estimate - 1001) < 50, "estimated %s elements", estimate);
+    }
+
+    /**
+     * OR_RANGES_SCRIPT, through a write-behind flush
+     */
+    private static void orRanges(EmbeddedRedisServer server, JedisPoolConnectionProvider connections) {
+        BloomFilter<CharSequence> filter = BloomFilter.create(FUNNEL, 10000, 0.01, connections, "flush", "t");
+        filter.put("a");
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+        try {
+            filter.enableWriteBehind(executor, 1, TimeUnit.HOURS);
+            List<String> elements = elements("w", 500);
+            for (String element : elements) {
+                filter.put(element);
+            }
+            long before = server.commands();
+            filter.flush();
+            check(server.commands() - before <= 2, "flushed with %s commands", server.commands() - before);
+            filter.disableWriteBehind();
+            check(filter.mightContainAll(elements).cardinality() == 500, "a flushed element is missing");
+            check(filter.mightContain("a"), "the flush cleared a bit");
+            long estimate = filter.approximateElementCount();
+            check(Math.abs(estimate - 501) < 30, "estimated %s elements", estimate);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * The refreshes of a local replica, which download only the segments whose count moved
+     */
+    private static void replica(JedisPoolConnectionProvider connections) throws InterruptedException {
+        BloomFilter<CharSequence> writer = BloomFilter.create(FUNNEL, 100000, 0.01, connections, 4, false, "replica", "t");
+        writer.put("before");
+        BloomFilter<CharSequence> reader = BloomFilter.open(FUNNEL, connections, "replica", "t");
+        ScheduledExecutorService executor = Executors.newScheduledThreadPool(2);
+        try {
+            reader.enableReplica(executor, 20, TimeUnit.MILLISECONDS);
+            long loaded = reader.metrics().bytesReceived();
+            check(loaded >= reader.bitSize() / 8, "loaded %s bytes of %s", loaded, reader.bitSize() / 8);
+            check(reader.mightContain("before"), "the replica misses before");
+
+            // an unchanged filter downloads nothing
+            Thread.sleep(200);
+            check(reader.metrics().bytesReceived() == loaded, "refreshed %s bytes of an unchanged filter",
+                    reader.metrics().bytesReceived() - loaded);
+
+            // a put downloads the segment of each of its bits again, at most all of them
+            writer.put("after");
+            long deadline = System.currentTimeMillis() + 5000;
+            while (!reader.mightContain("after")) {
+                check(System.currentTimeMillis() < deadline, "the replica never saw after");
+                Thread.sleep(10);
+            }
+            Thread.sleep(200);
+            long refreshed = reader.metrics().bytesReceived() - loaded;
+            check(refreshed > 0 && refreshed <= loaded, "refreshed %s bytes for one put", refreshed);
+            reader.disableReplica();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * BITOP_SCRIPT
+     */
+    private static void bitop(EmbeddedRedisServer server, JedisPoolConnectionProvider connections) {
+        BloomFilter<CharSequence> left = BloomFilter.create(FUNNEL, 10000, 0.01, connections, "left", "t");
+        BloomFilter<CharSequence> right = BloomFilter.create(FUNNEL, 10000, 0.01, connections, "right", "t");
+        left.putAll(elements("l", 100));
+        right.putAll(elements("r", 100));
+        right.put("both");
+        left.put("both");
+
+        BloomFilter<CharSequence> union = left.putAll(right, "union", "t");
+        check(union.mightContainAll(elements("l", 100)).cardinality() == 100, "the union misses a left element");
+        check(union.mightContainAll(elements("r", 100)).cardinality() == 100, "the union misses a right element");
+        long estimate = union.approximateElementCount();
+        check(Math.abs(estimate - 201) < 20, "estimated %s elements in the union", estimate);
+
+        BloomFilter<CharSequence> intersection = left.intersect(right, "intersection", "t");
+        check(intersection.mightContain("both"), "the intersection misses the common element");
+        check(intersection.approximateElementCount() < 5, "estimated %s common elements", intersection.approximateElementCount());
+
+        // BITOP would read the keys of a filter on another redis as empty
+        try (JedisPoolConnectionProvider otherConnections = server.newConnectionProvider()) {
+            BloomFilter<CharSequence> other = BloomFilter.open(FUNNEL, otherConnections, "right", "t");
+            try {
+                left.intersect(other);
+                throw new AssertionError("intersected filters of distinct connection providers");
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+        check(left.mightContainAll(elements("l", 100)).cardinality() == 100, "a rejected intersect cleared bits");
+
+        // the repairs and shadow of a guard would keep the bits an intersect clears
+        ScheduledExecutorService executor = Executors.newScheduledThreadPool(4);
+        try {
+            left.enableDeadline(executor, 1000, 1000, TimeUnit.MILLISECONDS, BloomFilter.Fallback.SHADOW);
+            try {
+                left.intersect(right);
+                throw new AssertionError("intersected a filter with deadlines enabled");
+            } catch (IllegalStateException expected) {
+            }
+            left.disableDeadline();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * UNLINK_SCRIPT, through the rotation of a time window
+     */
+    private static void unlink(EmbeddedRedisServer server, JedisPoolConnectionProvider connections) throws InterruptedException {
+        long bucketMillis = 200;
+        RotatingBloomFilter<CharSequence> filter = RotatingBloomFilter.create(
+                FUNNEL, 1000, 0.01, connections, bucketMillis, TimeUnit.MILLISECONDS, 2, "window", "t");
+        long bucket = System.currentTimeMillis() / bucketMillis + 1;
+        sleepUntil(bucket * bucketMillis + bucketMillis / 10);
+        filter.put("old");
+        check(filter.mightContain("old"), "old is missing");
+        String oldHeader = "bloomFilter_act_window_statType_t_" + bucket + "_header";
+        try (Jedis jedis = jedis(server)) {
+            check(jedis.exists(oldHeader), "the bucket of old was not created");
+            check(jedis.pttl(oldHeader) > 2 * bucketMillis, "the bucket of old expires as it leaves the window");
+
+            // the first put two buckets later unlinks the bucket of old
+            sleepUntil((bucket + 2) * bucketMillis + bucketMillis / 10);
+            filter.put("new");
+            check(!filter.mightContain("old"), "old outlived the window");
+            check(filter.mightContain("new"), "new is missing");
+            check(!jedis.exists(oldHeader), "the bucket of old was not unlinked");
+        }
+    }
+
+    /**
+     * The EVAL fallback of scripts lost by redis, single and pipelined
+     */
+    private static void scriptFlush(EmbeddedRedisServer server, JedisPoolConnectionProvider connections) {
+        BloomFilter<CharSequence> filter = BloomFilter.create(FUNNEL, 10000, 0.01, connections, "noscript", "t");
+        filter.putAll(elements("before", 10));
+        try (Jedis jedis = jedis(server)) {
+            jedis.scriptFlush();
+        }
+        check(filter.put("single"), "a put after SCRIPT FLUSH was not new");
+        try (Jedis jedis = jedis(server)) {
+            jedis.scriptFlush();
+        }
+        check(filter.putAll(elements("after", 10)).cardinality() == 10, "a pipelined put after SCRIPT FLUSH was lost");
+        check(filter.mightContainAll(elements("after", 10)).cardinality() == 10, "an element put after SCRIPT FLUSH is missing");
+    }
+
+    /**
+     * Prints the round trips and time of single and pipelined puts under a 1ms latency.
+     */
+    private static void benchmark(EmbeddedRedisServer server, JedisPoolConnectionProvider connections) {
+        BloomFilter<CharSequence> filter = BloomFilter.create(FUNNEL, 100000, 0.01, connections, "benchmark", "t");
+        server.setLatency(1, TimeUnit.MILLISECONDS);
+        try {
+            List<String> elements = elements("b", 200);
+            long roundTrips = server.roundTrips();
+            Stopwatch stopwatch = Stopwatch.createStarted();
+            for (String element : elements) {
+                filter.put(element);
+            }
+            long single = server.roundTrips() - roundTrips;
+            check(single == elements.size(), "%s round trips for %s puts", single, elements.size());
+            System.out.printf("put:    %s round trips, %s%n", single, stopwatch);
+
+            elements = elements("p", 200);
+            roundTrips = server.roundTrips();
+            stopwatch = Stopwatch.createStarted();
+            filter.putAll(elements);
+            long pipelined = server.roundTrips() - roundTrips;
+            check(pipelined == 1, "%s round trips for one putAll", pipelined);
+            System.out.printf("putAll: %s round trips, %s%n", pipelined, stopwatch);
+        } finally {
+            server.setLatency(0, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static void sleepUntil(long millis) throws InterruptedException {
+        long now = System.currentTimeMillis();
+        if (millis > now) {
+            Thread.sleep(millis - now);
+        }
+    }
+
+    private static List<String> elements(String prefix, int count) {
+        List<String> elements = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++) {
+            elements.add(prefix + i);
+        }
+        return elements;
+    }
+
+    private static Jedis jedis(EmbeddedRedisServer server) {
+        return new Jedis(server.getHost(), server.getPort());
+    }
+
+    private static void check(boolean condition, String message, Object... args) {
+        if (!condition) {
+            throw new AssertionError(String.format(message, args));
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package com.bitmap.ResidImpl.hash;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Objects;
+import redis.clients.util.SafeEncoder;
+
+import javax.annotation.Nullable;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * The immutable geometry of a Redis-backed {@link BloomFilter}: the number of bits, the number of
+ * hash functions, the strategy ordinal, the funnel id and how the bits are split into segment keys.
+ * It is stored as a Redis hash next to the bitmap, so a filter can be reopened by another process
+ * without recomputing its size.
+ */
+final class FilterHeader {
+    static final String BIT_SIZE = "bitSize";
+    static final String NUM_HASH_FUNCTIONS = "numHashFunctions";
+    static final String STRATEGY = "strategy";
+    static final String FUNNEL = "funnel";
+    static final String SEGMENTS = "segments";
+    static final String HASH_TAGS = "hashTags";
+
+    private final long bitSize;
+    private final int numHashFunctions;
+    private final int strategyOrdinal;
+    private final String funnelId;
+    private final int segments;
+    private final boolean hashTags;
+
+    FilterHeader(
+            long bitSize,
+            int numHashFunctions,
+            int strategyOrdinal,
+            String funnelId,
+            int segments,
+            boolean hashTags) {
+        checkArgument(bitSize > 0, "bitSize (%s) must be > 0", bitSize);
+        checkArgument(segments > 0, "segments (%s) must be > 0", segments);
+        this.bitSize = bitSize;
+        this.numHashFunctions = numHashFunctions;
+        this.strategyOrdinal = strategyOrdinal;
+        this.funnelId = funnelId;
+        this.segments = segments;
+        this.hashTags = hashTags;
+    }
+
+    /**
+     * Returns the id under which {@code funnel} is recorded in a header. Funnels are compared across
+     * processes by this id, so it must be stable: the funnels of {@link Funnels} and enum funnels
+     * qualify.
+     */
+    static String funnelId(Funnel<?> funnel) {
+        return funnel.toString();
+    }
+
+    long bitSize() {
+        return bitSize;
+    }
+
+    int numHashFunctions() {
+        return numHashFunctions;
+    }
+
+    int strategyOrdinal() {
+        return strategyOrdinal;
+    }
+
+    String funnelId() {
+        return funnelId;
+    }
+
+    /**
+     * Number of redis keys the bits are split into
+     */
+    int segments() {
+        return segments;
+    }
+
+    /**
+     * Whether the segment keys carry hash tags that spread them over the cluster slots
+     */
+    boolean hashTags() {
+        return hashTags;
+    }
+
+    /**
+     * Returns the header fields in the order expected by the header creation script.
+     */
+    List<byte[]> toArguments() {
+        return Arrays.asList(
+                SafeEncoder.encode(String.valueOf(bitSize)),
+                SafeEncoder.encode(String.valueOf(numHashFunctions)),
+                SafeEncoder.encode(String.valueOf(strategyOrdinal)),
+                SafeEncoder.encode(funnelId),
+                SafeEncoder.encode(String.valueOf(segments)),
+                SafeEncoder.encode(hashTags ? "1" : "0"));
+    }
+
+    /**
+     * Parses a header read back with HGETALL. Headers written before filters could be segmented
+     * have no segment fields and describe a single key.
+     *
+     * @throws IllegalArgumentException if a field is missing or malformed
+     */
+    static FilterHeader fromMap(Map<String, String> map) {
+        try {
+            String funnelId = map.get(FUNNEL);
+            checkArgument(funnelId != null, "missing field %s", FUNNEL);
+            String segments = map.get(SEGMENTS);
+            return new FilterHeader(
+                    Long.parseLong(map.get(BIT_SIZE)),
+                    Integer.parseInt(map.get(NUM_HASH_FUNCTIONS)),
+                    Integer.parseInt(map.get(STRATEGY)),
+                    funnelId,
+                    segments == null ? 1 : Integer.parseInt(segments),
+                    "1".equals(map.get(HASH_TAGS)));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Malformed BloomFilter header " + map, e);
+        }
+    }
+
+    /**
+     * Parses a header replied as the flat field/value list of HGETALL inside a script.
+     */
+    static FilterHeader fromList(List<?> fieldsAndValues) {
+        Map<String, String> map = new HashMap<String, String>();
+        for (int i = 0; i + 1 < fieldsAndValues.size(); i += 2) {
+            map.put(text(fieldsAndValues.get(i)), text(fieldsAndValues.get(i + 1)));
+        }
+        return fromMap(map);
+    }
+
+    /**
+     * Decodes a value of a script reply, which is binary when the script was run with binary
+     * arguments.
+     */
+    private static String text(Object value) {
+        return value instanceof byte[] ? SafeEncoder.encode((byte[]) value) : String.valueOf(value);
+    }
+
+    @Override
+    public boolean equals(@Nullable Object object) {
+        if (object instanceof FilterHeader) {
+            FilterHeader that = (FilterHeader) object;
+            return this.bitSize == that.bitSize
+                    && this.numHashFunctions == that.numHashFunctions
+                    && this.strategyOrdinal == that.strategyOrdinal
+                    && this.funnelId.equals(that.funnelId)
+                    && this.segments == that.segments
+                    && this.hashTags == that.hashTags;
+        }
+        return false;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hashCode(bitSize, numHashFunctions, strategyOrdinal, funnelId, segments, hashTags);
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add(BIT_SIZE, bitSize)
+                .add(NUM_HASH_FUNCTIONS, numHashFunctions)
+                .add(STRATEGY, strategyOrdinal)
+                .add(FUNNEL, funnelId)
+                .add(SEGMENTS, segments)
+                .add(HASH_TAGS, hashTags)
+                .toString();
+    }
+}
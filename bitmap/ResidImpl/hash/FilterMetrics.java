@@ -0,0 +1,212 @@
+package com.bitmap.ResidImpl.hash;
+
+import com.google.common.base.MoreObjects;
+
+/**
+ * Operation counters and latency histograms of one Redis-backed {@link BloomFilter}, to tell apart
+ * the time spent hashing, the number of round trips and the time redis takes. Counters are striped
+ * {@link LongAddable}s, so recording never contends on the hot path; reads are not atomic snapshots
+ * across counters.
+ */
+public final class FilterMetrics {
+    final LongAddable puts = LongAddables.create();
+    final LongAddable lookups = LongAddables.create();
+    final LongAddable positives = LongAddables.create();
+    final LongAddable roundTrips = LongAddables.create();
+    final LongAddable bytesSent = LongAddables.create();
+    final LongAddable bytesReceived = LongAddables.create();
+    final LongAddable errors = LongAddables.create();
+    final Histogram putLatency = new Histogram();
+    final Histogram lookupLatency = new Histogram();
+    final Histogram hashLatency = new Histogram();
+    final Histogram batchSizes = new Histogram();
+
+    FilterMetrics() {
+    }
+
+    /**
+     * Records a call that put {@code elements} elements in {@code nanos}.
+     */
+    void put(int elements, long nanos) {
+        puts.add(elements);
+        putLatency.record(nanos);
+    }
+
+    /**
+     * Records a call that looked up {@code elements} elements, {@code found} of which might be
+     * contained, in {@code nanos}.
+     */
+    void lookedUp(int elements, int found, long nanos) {
+        lookups.add(elements);
+        positives.add(found);
+        lookupLatency.record(nanos);
+    }
+
+    /**
+     * Number of elements put
+     */
+    public long puts() {
+        return puts.sum();
+    }
+
+    /**
+     * Number of elements looked up
+     */
+    public long lookups() {
+        return lookups.sum();
+    }
+
+    /**
+     * Number of lookups that answered "might contain"
+     */
+    public long positives() {
+        return positives.sum();
+    }
+
+    /**
+     * Number of redis round trips: single commands and pipeline syncs
+     */
+    public long roundTrips() {
+        return roundTrips.sum();
+    }
+
+    /**
+     * Payload bytes sent to redis as BITFIELD arguments and merged bitmap ranges, protocol framing
+     * excluded
+     */
+    public long bytesSent() {
+        return bytesSent.sum();
+    }
+
+    /**
+     * Payload bytes received from redis as BITFIELD replies and bitmap ranges, protocol framing
+     * excluded
+     */
+    public long bytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    /**
+     * Number of puts and lookups that failed with an exception
+     */
+    public long errors() {
+        return errors.sum();
+    }
+
+    /**
+     * Latency in nanoseconds of the calls that put elements, a batch counting as one call
+     */
+    public Histogram putLatency() {
+        return putLatency;
+    }
+
+    /**
+     * Latency in nanoseconds of the calls that looked elements up, a batch counting as one call
+     */
+    public Histogram lookupLatency() {
+        return lookupLatency;
+    }
+
+    /**
+     * Time in nanoseconds spent hashing single elements to their bit indexes
+     */
+    public Histogram hashLatency() {
+        return hashLatency;
+    }
+
+    /**
+     * Number of elements per pipeline
+     */
+    public Histogram batchSizes() {
+        return batchSizes;
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("puts", puts())
+                .add("lookups", lookups())
+                .add("positives", positives())
+                .add("roundTrips", roundTrips())
+                .add("bytesSent", bytesSent())
+                .add("bytesReceived", bytesReceived())
+                .add("errors", errors())
+                .add("putLatency", putLatency)
+                .add("lookupLatency", lookupLatency)
+                .add("hashLatency", hashLatency)
+                .add("batchSizes", batchSizes)
+                .toString();
+    }
+
+    /**
+     * A histogram of non-negative values in power of two buckets: bucket {@code i} counts the values
+     * {@code v} with {@code 2^(i-1) <= v < 2^i}, bucket 0 counting zeros.
+     */
+    public static final class Histogram {
+        private static final int BUCKETS = Long.SIZE;
+
+        private final LongAddable[] buckets = new LongAddable[BUCKETS];
+        private final LongAddable sum = LongAddables.create();
+
+        Histogram() {
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets[i] = LongAddables.create();
+            }
+        }
+
+        void record(long value) {
+            buckets[Long.SIZE - Long.numberOfLeadingZeros(Math.max(0, value))].increment();
+            sum.add(value);
+        }
+
+        /**
+         * Number of values recorded
+         */
+        public long count() {
+            long count = 0;
+            for (LongAddable bucket : buckets) {
+                count += bucket.sum();
+            }
+            return count;
+        }
+
+        public double mean() {
+            long count = count();
+            return count == 0 ? 0 : (double) sum.sum() / count;
+        }
+
+        /**
+         * Returns the number of values recorded in bucket {@code i}, in [0, 63].
+         */
+        public long bucket(int i) {
+            return buckets[i].sum();
+        }
+
+        /**
+         * Returns an upper bound of the {@code p}-th percentile, within a factor of two.
+         *
+         * @param p in [0, 1], e.g. 0.99
+         */
+        public long percentile(double p) {
+            long rank = (long) Math.ceil(p * count());
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets[i].sum();
+                if (seen >= rank && seen > 0) {
+                    return (1L << i) - 1;
+                }
+            }
+            return 0;
+        }
+
+        @Override
+        public String toString() {
+            return MoreObjects.toStringHelper(this)
+                    .add("count", count())
+                    .add("mean", mean())
+                    .add("p50", percentile(0.5))
+                    .add("p99", percentile(0.99))
+                    .toString();
+        }
+    }
+}
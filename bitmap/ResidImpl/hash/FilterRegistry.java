@@ -0,0 +1,173 @@
+package com.bitmap.ResidImpl.hash;
+
+import com.bitmap.ResidImpl.RedisConnectionProvider;
+import com.bitmap.ResidImpl.hash.BloomFilterStrategies.RedisBitArray;
+import com.google.common.annotations.Beta;
+import com.google.common.base.Objects;
+import com.google.common.base.Throwables;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * The Redis-backed Bloom filters of many tenants, one per {@code actKey} and {@code statType},
+ * sharing one {@link RedisConnectionProvider}. Filters are opened on first use, created with the
+ * registry's default geometry if they do not exist yet, and dropped once idle; opening an existing
+ * filter only reads its header, without the preallocation of {@link BloomFilter#create}.
+ * <p>
+ * <p>{@link #mightContainAll} checks one element against many tenants with one pipeline per redis
+ * node, hashing the element once per distinct filter geometry.
+ *
+ * @param <T> the type of instances that the filters accept
+ */
+@Beta
+public final class FilterRegistry<T> {
+    private final Funnel<? super T> funnel;
+    private final long expectedInsertions;
+    private final double fpp;
+    private final RedisConnectionProvider connections;
+    private final LoadingCache<Tenant, BloomFilter<T>> filters;
+
+    private FilterRegistry(
+            Funnel<? super T> funnel,
+            long expectedInsertions,
+            double fpp,
+            RedisConnectionProvider connections,
+            long idleTimeout,
+            TimeUnit unit) {
+        this.funnel = funnel;
+        this.expectedInsertions = expectedInsertions;
+        this.fpp = fpp;
+        this.connections = connections;
+        this.filters = CacheBuilder.newBuilder()
+                .expireAfterAccess(idleTimeout, unit)
+                .build(new CacheLoader<Tenant, BloomFilter<T>>() {
+                    @Override
+                    public BloomFilter<T> load(Tenant tenant) {
+                        return open(tenant);
+                    }
+                });
+    }
+
+    /**
+     * Returns the filter of {@code actKey} / {@code statType}, opening or creating it if this
+     * registry holds no handle on it.
+     *
+     * @throws IllegalArgumentException if the filter exists with another funnel
+     */
+    public BloomFilter<T> get(String actKey, String statType) {
+        try {
+            return filters.getUnchecked(new Tenant(actKey, statType));
+        } catch (UncheckedExecutionException e) {
+            Throwables.throwIfUnchecked(e.getCause());
+            throw e;
+        }
+    }
+
+    /**
+     * Checks {@code object} against the filter of every act of {@code actKeys} for
+     * {@code statType}. Bit {@code i} of the result is set if the filter of {@code actKeys.get(i)}
+     * might contain the element. Local modes enabled on the filters, such as write-behind, are
+     * ignored.
+     */
+    public BitSet mightContainAll(T object, List<String> actKeys, String statType) {
+        List<RedisBitArray> arrays = new ArrayList<RedisBitArray>(actKeys.size());
+        List<long[]> bitIndexes = new ArrayList<long[]>(actKeys.size());
+        List<BloomFilter<T>> hashed = new ArrayList<BloomFilter<T>>();
+        List<long[]> hashes = new ArrayList<long[]>();
+        for (String actKey : actKeys) {
+            BloomFilter<T> filter = get(actKey, statType);
+            arrays.add(filter.bits());
+            bitIndexes.add(bitIndexes(object, filter, hashed, hashes));
+        }
+        return RedisBitArray.getAll(arrays, bitIndexes);
+    }
+
+    /**
+     * Returns the bit indexes of {@code object} in {@code filter}, reusing those of a filter of the
+     * same geometry among {@code hashed}, whose bit indexes are {@code hashes}.
+     */
+    private long[] bitIndexes(T object, BloomFilter<T> filter, List<BloomFilter<T>> hashed, List<long[]> hashes) {
+        for (int i = 0; i < hashed.size(); i++) {
+            if (hashed.get(i).hashesLike(filter)) {
+                return hashes.get(i);
+            }
+        }
+        long[] bitIndexes = filter.bitIndexes(object);
+        hashed.add(filter);
+        hashes.add(bitIndexes);
+        return bitIndexes;
+    }
+
+    /**
+     * Drops the handles of all the filters; they are reopened on their next use.
+     */
+    public void invalidateAll() {
+        filters.invalidateAll();
+    }
+
+    private BloomFilter<T> open(Tenant tenant) {
+        FilterHeader header = RedisBitArray.readHeader(connections, tenant.actKey, tenant.statType);
+        if (header != null) {
+            return BloomFilter.open(funnel, connections, header, tenant.actKey, tenant.statType);
+        }
+        return BloomFilter.create(funnel, expectedInsertions, fpp, connections, tenant.actKey, tenant.statType);
+    }
+
+    /**
+     * Creates a registry of filters over {@code connections}. Missing filters are created for
+     * {@code expectedInsertions} elements at false positive probability {@code fpp}; filters not
+     * used for {@code idleTimeout} are dropped from the registry, not from redis.
+     */
+    public static <T> FilterRegistry<T> create(
+            Funnel<? super T> funnel,
+            long expectedInsertions,
+            double fpp,
+            RedisConnectionProvider connections,
+            long idleTimeout,
+            TimeUnit unit) {
+        checkNotNull(funnel);
+        checkNotNull(connections);
+        checkNotNull(unit);
+        checkArgument(
+                expectedInsertions >= 0, "Expected insertions (%s) must be >= 0", expectedInsertions);
+        checkArgument(fpp > 0.0, "False positive probability (%s) must be > 0.0", fpp);
+        checkArgument(fpp < 1.0, "False positive probability (%s) must be < 1.0", fpp);
+        checkArgument(idleTimeout > 0, "idleTimeout (%s) must be > 0", idleTimeout);
+        return new FilterRegistry<T>(funnel, expectedInsertions, fpp, connections, idleTimeout, unit);
+    }
+
+    private static final class Tenant {
+        final String actKey;
+        final String statType;
+
+        Tenant(String actKey, String statType) {
+            this.actKey = checkNotNull(actKey);
+            this.statType = checkNotNull(statType);
+        }
+
+        @Override
+        public boolean equals(@Nullable Object object) {
+            if (object instanceof Tenant) {
+                Tenant that = (Tenant) object;
+                return actKey.equals(that.actKey) && statType.equals(that.statType);
+            }
+            return false;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(actKey, statType);
+        }
+    }
+}
@@ -0,0 +1,244 @@
+package com.bitmap.ResidImpl.hash;
+
+import com.bitmap.ResidImpl.hash.BloomFilter.Fallback;
+import com.bitmap.ResidImpl.hash.BloomFilterStrategies.RedisBitArray;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Bounds the time puts and lookups wait for redis. Calls run on an executor and are abandoned at
+ * their deadline; a lookup still running after the hedge delay is sent again on another
+ * connection, and the first reply wins; a failed lookup is retried once the same way. A lookup
+ * that misses its deadline or fails is answered by the {@link Fallback}.
+ * <p>
+ * <p>The bits of puts that miss their deadline or fail are kept in a repair buffer, which is merged
+ * into redis in the background once redis answers again; until then lookups see them through the
+ * buffer. Every put is also recorded in a local shadow filter of at most {@link #MAX_SHADOW_BITS}
+ * bits, which answers the lookups of the {@link Fallback#SHADOW} fallback; the bits of a larger
+ * filter are folded into it, which only adds false positives.
+ * <p>
+ * <p>Abandoned attempts are interrupted, which stops those still waiting for a connection; one
+ * already blocked on its socket runs until the read timeout of the connection provider.
+ */
+final class LatencyGuard {
+    /**
+     * Delay between two attempts to merge the repair buffer into redis.
+     */
+    private static final long RECONCILE_INTERVAL_MILLIS = 1000;
+
+    /**
+     * Largest shadow filter, 16MB
+     */
+    static final long MAX_SHADOW_BITS = 1L << 27;
+
+    private final RedisBitArray bits;
+    private final ScheduledExecutorService executor;
+    private final long deadlineNanos;
+    private final long hedgeDelayNanos;
+    private final Fallback fallback;
+
+    /**
+     * The bits of every put since the guard was enabled, folded modulo {@link #shadowBits}
+     */
+    private final LocalReplica shadow;
+    private final long shadowBits;
+
+    /**
+     * The bits of the puts that may not have reached redis
+     */
+    private final WriteBehindBuffer repairs;
+
+    private final ScheduledFuture<?> reconcileTask;
+
+    // guarded by this
+    private boolean closed;
+
+    LatencyGuard(
+            RedisBitArray bits,
+            ScheduledExecutorService executor,
+            long deadline,
+            long hedgeDelay,
+            TimeUnit unit,
+            Fallback fallback) {
+        checkArgument(deadline > 0, "deadline (%s) must be > 0", deadline);
+        checkArgument(hedgeDelay > 0, "hedgeDelay (%s) must be > 0", hedgeDelay);
+        this.bits = checkNotNull(bits);
+        this.executor = checkNotNull(executor);
+        this.deadlineNanos = unit.toNanos(deadline);
+        this.hedgeDelayNanos = unit.toNanos(hedgeDelay);
+        this.fallback = checkNotNull(fallback);
+        this.repairs = new WriteBehindBuffer(bits.bitSize());
+        this.shadowBits = Math.min(bits.bitSize(), MAX_SHADOW_BITS);
+        this.shadow = new LocalReplica(shadowBits);
+        this.reconcileTask = executor.scheduleWithFixedDelay(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        synchronized (LatencyGuard.this) {
+                            if (closed) {
+                                return;
+                            }
+                            try {
+                                reconcile();
+                            } catch (RuntimeException e) {
+                                // redis is still down, the repairs are back in the buffer
+                            }
+                        }
+                    }
+                },
+                RECONCILE_INTERVAL_MILLIS,
+                RECONCILE_INTERVAL_MILLIS,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Runs {@code lookup}, the strategy's read of the element's bits from redis, within the
+     * deadline, falling back on the repair buffer and the {@link Fallback}.
+     *
+     * @param bitIndexes the indexes of the bits {@code lookup} reads
+     */
+    boolean mightContain(Callable<Boolean> lookup, long[] bitIndexes) {
+        try {
+            // redis may still miss puts of this instance that wait for repair
+            return call(lookup, true) || allRepairing(bitIndexes);
+        } catch (TimeoutException | ExecutionException e) {
+            if (allRepairing(bitIndexes)) {
+                return true;
+            }
+            switch (fallback) {
+                case SHADOW:
+                    return allInShadow(bitIndexes);
+                case ASSUME_PRESENT:
+                    return true;
+                default:
+                    return false;
+            }
+        }
+    }
+
+    boolean put(final long[] bitIndexes) {
+        boolean inShadow = allInShadow(bitIndexes);
+        for (long bitIndex : bitIndexes) {
+            shadow.set(bitIndex % shadowBits);
+        }
+        try {
+            return call(
+                    new Callable<Boolean>() {
+                        @Override
+                        public Boolean call() {
+                            return bits.setAll(bitIndexes);
+                        }
+                    },
+                    false);
+        } catch (TimeoutException | ExecutionException e) {
+            repairs.setAll(bitIndexes);
+            return !inShadow;
+        }
+    }
+
+    /**
+     * Merges the repair buffer into redis now.
+     */
+    synchronized void reconcile() {
+        bits.flush(repairs);
+    }
+
+    /**
+     * Stops the background reconciliation after a last attempt. Waits for a background
+     * reconciliation in progress, so none runs once this returns.
+     *
+     * @throws RuntimeException if redis fails the last attempt; the guard is then left as it was,
+     *                          its repairs kept and still merged in the background
+     */
+    synchronized void close() {
+        reconcile();
+        closed = true;
+        reconcileTask.cancel(false);
+    }
+
+    private boolean allRepairing(long[] bitIndexes) {
+        for (long bitIndex : bitIndexes) {
+            if (!repairs.get(bitIndex)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean allInShadow(long[] bitIndexes) {
+        for (long bitIndex : bitIndexes) {
+            if (!shadow.get(bitIndex % shadowBits)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Runs {@code call} on the executor and waits for it until the deadline, sending it a second
+     * time after the hedge delay if {@code hedge} is set.
+     *
+     * @throws TimeoutException   if no attempt answered before the deadline
+     * @throws ExecutionException if every attempt failed
+     */
+    private boolean call(Callable<Boolean> call, boolean hedge) throws TimeoutException, ExecutionException {
+        long deadline = System.nanoTime() + deadlineNanos;
+        CompletionService<Boolean> completion = new ExecutorCompletionService<Boolean>(executor);
+        List<Future<Boolean>> attempts = new ArrayList<Future<Boolean>>(2);
+        attempts.add(completion.submit(call));
+        boolean hedged = !hedge || hedgeDelayNanos >= deadlineNanos;
+        int running = 1;
+        ExecutionException failure = null;
+        try {
+            while (running > 0) {
+                long waitNanos = deadline - System.nanoTime();
+                if (!hedged) {
+                    waitNanos = Math.min(waitNanos, hedgeDelayNanos);
+                }
+                Future<Boolean> done = completion.poll(waitNanos, TimeUnit.NANOSECONDS);
+                if (done == null) {
+                    if (hedged) {
+                        throw new TimeoutException();
+                    }
+                    attempts.add(completion.submit(call));
+                    hedged = true;
+                    running++;
+                    continue;
+                }
+                try {
+                    return done.get();
+                } catch (ExecutionException e) {
+                    failure = e;
+                    running--;
+                    if (!hedged) {
+                        // retry at once rather than after the hedge delay
+                        attempts.add(completion.submit(call));
+                        hedged = true;
+                        running++;
+                    }
+                }
+            }
+            throw failure;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TimeoutException();
+        } finally {
+            for (Future<Boolean> attempt : attempts) {
+                attempt.cancel(true);
+            }
+        }
+    }
+}
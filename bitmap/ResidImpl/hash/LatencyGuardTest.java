@@ -0,0 +1,156 @@
+package com.bitmap.ResidImpl.hash;
+
+import com.bitmap.ResidImpl.JedisPoolConnectionProvider;
+import com.bitmap.ResidImpl.RedisConnectionProvider;
+import com.google.common.base.Charsets;
+import com.google.common.base.Stopwatch;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks the deadlines of a filter, enforced by {@link LatencyGuard}, against an
+ * {@link EmbeddedRedisServer}: guarded lookups read redis the way their strategy does, lookups that
+ * miss their deadline are answered by the fallback, and the puts redis fails are repaired once it
+ * answers again. Run it with {@code main}; a failed check throws an {@link AssertionError}.
+ */
+public class LatencyGuardTest {
+    private static final Funnel<CharSequence> FUNNEL = Funnels.stringFunnel(Charsets.UTF_8);
+
+    public static void main(String[] args) throws Exception {
+        try (EmbeddedRedisServer server = EmbeddedRedisServer.start()) {
+            JedisPoolConnectionProvider connections = server.newConnectionProvider();
+            for (BloomFilterStrategies strategy : BloomFilterStrategies.values()) {
+                guardedReads(server, connections, strategy);
+            }
+            fallback(server, connections);
+            repair(connections);
+        }
+        System.out.println("OK");
+    }
+
+    /**
+     * A guarded lookup costs what the strategy's own lookup costs: one GETRANGE of a block for
+     * MURMUR128_BLOCKED_512, not a BITFIELD of every bit
+     */
+    private static void guardedReads(
+            EmbeddedRedisServer server, JedisPoolConnectionProvider connections, BloomFilterStrategies strategy) {
+        BloomFilter<CharSequence> filter = BloomFilter.create(
+                FUNNEL, 1000, 0.01, strategy, connections, 0, false, "guarded_" + strategy.name(), "t");
+        filter.putAll(elements("g", 1000));
+
+        long roundTrips = server.roundTrips();
+        long received = filter.metrics().bytesReceived();
+        check(filter.mightContain("g0"), "%s: g0 is missing", strategy);
+        long unguardedRoundTrips = server.roundTrips() - roundTrips;
+        long unguardedReceived = filter.metrics().bytesReceived() - received;
+
+        ScheduledExecutorService executor = Executors.newScheduledThreadPool(4);
+        try {
+            filter.enableDeadline(executor, 1000, 1000, TimeUnit.MILLISECONDS, BloomFilter.Fallback.ASSUME_ABSENT);
+            roundTrips = server.roundTrips();
+            received = filter.metrics().bytesReceived();
+            check(filter.mightContain("g0"), "%s: g0 is missing under a deadline", strategy);
+            check(server.roundTrips() - roundTrips == unguardedRoundTrips, "%s: %s round trips for a guarded lookup, not %s",
+                    strategy, server.roundTrips() - roundTrips, unguardedRoundTrips);
+            check(filter.metrics().bytesReceived() - received == unguardedReceived, "%s: received %s bytes, not %s",
+                    strategy, filter.metrics().bytesReceived() - received, unguardedReceived);
+            filter.disableDeadline();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Lookups that miss their deadline are answered by the fallback, without waiting for redis
+     */
+    private static void fallback(EmbeddedRedisServer server, JedisPoolConnectionProvider connections) {
+        BloomFilter<CharSequence> shadowed = BloomFilter.create(FUNNEL, 1000, 0.01, connections, "shadowed", "t");
+        BloomFilter<CharSequence> present = BloomFilter.create(FUNNEL, 1000, 0.01, connections, "present", "t");
+        ScheduledExecutorService executor = Executors.newScheduledThreadPool(8);
+        try {
+            shadowed.enableDeadline(executor, 50, 20, TimeUnit.MILLISECONDS, BloomFilter.Fallback.SHADOW);
+            present.enableDeadline(executor, 50, 20, TimeUnit.MILLISECONDS, BloomFilter.Fallback.ASSUME_PRESENT);
+            shadowed.put("a");
+
+            server.setLatency(300, TimeUnit.MILLISECONDS);
+            try {
+                Stopwatch stopwatch = Stopwatch.createStarted();
+                check(shadowed.mightContain("a"), "the shadow lost a put");
+                check(!shadowed.mightContain("b"), "the shadow holds an element never put");
+                check(present.mightContain("b"), "ASSUME_PRESENT reported an element absent");
+                long elapsed = stopwatch.elapsed(TimeUnit.MILLISECONDS);
+                check(elapsed < 300, "three lookups waited %sms for redis", elapsed);
+            } finally {
+                server.setLatency(0, TimeUnit.MILLISECONDS);
+            }
+            shadowed.disableDeadline();
+            present.disableDeadline();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * The bits of a put redis fails are kept, answered locally, and merged into redis in the
+     * background once it answers again; disabling deadlines meanwhile fails and keeps them
+     */
+    private static void repair(final JedisPoolConnectionProvider connections) throws Exception {
+        BloomFilter<CharSequence> reader = BloomFilter.create(FUNNEL, 1000, 0.01, connections, "repair", "t");
+        final boolean[] failing = new boolean[1];
+        RedisConnectionProvider failingConnections = new RedisConnectionProvider() {
+            @Override
+            public Jedis getResource(String key) {
+                if (failing[0]) {
+                    throw new JedisConnectionException("injected failure");
+                }
+                return connections.getResource(key);
+            }
+        };
+        BloomFilter<CharSequence> filter = BloomFilter.open(FUNNEL, failingConnections, "repair", "t");
+        ScheduledExecutorService executor = Executors.newScheduledThreadPool(4);
+        try {
+            filter.enableDeadline(executor, 1000, 1000, TimeUnit.MILLISECONDS, BloomFilter.Fallback.ASSUME_ABSENT);
+            failing[0] = true;
+            check(filter.put("r"), "a put redis failed was not new");
+            check(filter.mightContain("r"), "a put waiting for repair is missing");
+            check(!reader.mightContain("r"), "a put redis failed reached redis");
+            try {
+                filter.disableDeadline();
+                throw new AssertionError("disabled deadlines with repairs redis failed");
+            } catch (JedisConnectionException expected) {
+            }
+            check(filter.mightContain("r"), "a failed disableDeadline dropped the repairs");
+
+            failing[0] = false;
+            long deadline = System.currentTimeMillis() + 10000;
+            while (!reader.mightContain("r")) {
+                check(System.currentTimeMillis() < deadline, "the repair was not merged in the background");
+                Thread.sleep(100);
+            }
+            filter.disableDeadline();
+            check(filter.mightContain("r"), "a repaired put is missing");
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static List<String> elements(String prefix, int count) {
+        List<String> elements = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++) {
+            elements.add(prefix + i);
+        }
+        return elements;
+    }
+
+    private static void check(boolean condition, String message, Object... args) {
+        if (!condition) {
+            throw new AssertionError(String.format(message, args));
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.bitmap.ResidImpl.hash;
+
+import com.google.common.primitives.Longs;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * A full in-memory copy of a redis bitmap. Ranges downloaded from redis are ORed in, never copied
+ * over, so a bit once seen set stays set and concurrent refreshes and local puts cannot undo each
+ * other.
+ */
+final class LocalReplica {
+    private static final int LONG_ADDRESSABLE_BITS = 6;
+
+    private final AtomicLongArray data;
+
+    /**
+     * @param bits the number of bits of the bitmap, a multiple of 64
+     */
+    LocalReplica(long bits) {
+        long words = bits >>> LONG_ADDRESSABLE_BITS;
+        checkArgument(words <= Integer.MAX_VALUE, "%s bits are too many to replicate locally", bits);
+        this.data = new AtomicLongArray((int) words);
+    }
+
+    boolean get(long bitIndex) {
+        return (data.get((int) (bitIndex >>> LONG_ADDRESSABLE_BITS)) & (1L << bitIndex)) != 0;
+    }
+
+    void set(long bitIndex) {
+        or((int) (bitIndex >>> LONG_ADDRESSABLE_BITS), 1L << bitIndex);
+    }
+
+    void setAll(long[] bitIndexes) {
+        for (long bitIndex : bitIndexes) {
+            set(bitIndex);
+        }
+    }
+
+    /**
+     * Returns {@code length} bytes starting at bit {@code fromBit}, which must be byte aligned, laid
+     * out as in a redis bitmap.
+     */
+    byte[] getBytes(long fromBit, int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            long bitIndex = fromBit + (long) i * Byte.SIZE;
+            long word = Long.reverse(data.get((int) (bitIndex >>> LONG_ADDRESSABLE_BITS)));
+            bytes[i] = (byte) (word >>> (56 - (bitIndex & 63)));
+        }
+        return bytes;
+    }
+
+    /**
+     * ORs in a range of a redis bitmap starting at bit {@code fromBit}, which must be word aligned.
+     * A range shorter than the bitmap, as replied by GETRANGE past the end of the string, reads as
+     * trailing zeros.
+     */
+    void orBytes(long fromBit, byte[] bytes) {
+        int wordIndex = (int) (fromBit >>> LONG_ADDRESSABLE_BITS);
+        byte[] word = new byte[Longs.BYTES];
+        for (int i = 0; i < bytes.length; i += Longs.BYTES) {
+            int count = Math.min(Longs.BYTES, bytes.length - i);
+            System.arraycopy(bytes, i, word, 0, count);
+            for (int j = count; j < Longs.BYTES; j++) {
+                word[j] = 0;
+            }
+            // redis numbers the bits of a word from the most significant one
+            or(wordIndex++, Long.reverse(Longs.fromByteArray(word)));
+        }
+    }
+
+    private void or(int wordIndex, long mask) {
+        if (mask == 0) {
+            return;
+        }
+        long oldValue;
+        long newValue;
+        do {
+            oldValue = data.get(wordIndex);
+            newValue = oldValue | mask;
+            if (oldValue == newValue) {
+                return;
+            }
+        } while (!data.compareAndSet(wordIndex, oldValue, newValue));
+    }
+}
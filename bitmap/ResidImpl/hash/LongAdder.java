@@ -47,7 +47,7 @@ import java.util.concurrent.atomic.AtomicLong;
  * @author Doug Lea
  */
 @GwtCompatible(emulated = true)
-final class LongAdder extends Striped64 implements Serializable, LongAddable {
+public final class LongAdder extends Striped64 implements Serializable, LongAddable {
     private static final long serialVersionUID = 7249069246863182397L;
 
     /**
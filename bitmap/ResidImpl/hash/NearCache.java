@@ -0,0 +1,96 @@
+package com.bitmap.ResidImpl.hash;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * A bounded local cache of the bits of a redis bitmap that are known to be set. Bloom filter bits
+ * only ever go from 0 to 1, so a cached 1 never goes stale and can be answered without asking
+ * redis; a bit that is not cached may be 0 or 1 and must be read from redis.
+ * <p>
+ * <p>Bits are cached in chunks of {@link #CHUNK_BITS} bits, least recently used chunks being
+ * evicted first once the memory bound is reached. The cache is only valid as long as the bitmap is
+ * never cleared or deleted.
+ */
+final class NearCache {
+    private static final int LONG_ADDRESSABLE_BITS = 6;
+
+    /**
+     * Number of bits per chunk, i.e. 4KB of memory per cached chunk.
+     */
+    static final int CHUNK_BITS = 1 << 15;
+
+    private final Cache<Long, AtomicLongArray> chunks;
+
+    /**
+     * @param maxBytes the memory bound of the cached chunks
+     */
+    NearCache(long maxBytes) {
+        long chunkBytes = CHUNK_BITS / Byte.SIZE;
+        checkArgument(maxBytes >= chunkBytes, "maxBytes (%s) must be >= %s", maxBytes, chunkBytes);
+        this.chunks = CacheBuilder.newBuilder().maximumSize(maxBytes / chunkBytes).build();
+    }
+
+    /**
+     * Returns true if the bit is known to be set in redis.
+     */
+    boolean get(long bitIndex) {
+        AtomicLongArray chunk = chunks.getIfPresent(bitIndex / CHUNK_BITS);
+        return chunk != null && (chunk.get(wordInChunk(bitIndex)) & (1L << bitIndex)) != 0;
+    }
+
+    /**
+     * Records that the bit is set in redis.
+     */
+    void set(long bitIndex) {
+        Long chunkIndex = bitIndex / CHUNK_BITS;
+        AtomicLongArray chunk = chunks.getIfPresent(chunkIndex);
+        if (chunk == null) {
+            AtomicLongArray created = new AtomicLongArray(CHUNK_BITS / Long.SIZE);
+            chunk = chunks.asMap().putIfAbsent(chunkIndex, created);
+            if (chunk == null) {
+                chunk = created;
+            }
+        }
+
+        int wordIndex = wordInChunk(bitIndex);
+        long mask = 1L << bitIndex; // only cares about low 6 bits of bitIndex
+        long oldValue;
+        long newValue;
+        do {
+            oldValue = chunk.get(wordIndex);
+            newValue = oldValue | mask;
+            if (oldValue == newValue) {
+                return;
+            }
+        } while (!chunk.compareAndSet(wordIndex, oldValue, newValue));
+    }
+
+    void setAll(long[] bitIndexes) {
+        for (long bitIndex : bitIndexes) {
+            set(bitIndex);
+        }
+    }
+
+    /**
+     * Records the set bits of a range read from redis, starting at bit {@code fromBit}.
+     */
+    void setBytes(long fromBit, byte[] bytes) {
+        for (int i = 0; i < bytes.length; i++) {
+            for (int bit = 0; bit < Byte.SIZE; bit++) {
+                // redis numbers the bits of a byte from the most significant one
+                if ((bytes[i] & (0x80 >>> bit)) != 0) {
+                    set(fromBit + (long) i * Byte.SIZE + bit);
+                }
+            }
+        }
+    }
+
+    private static int wordInChunk(long bitIndex) {
+        return (int) ((bitIndex % CHUNK_BITS) >>> LONG_ADDRESSABLE_BITS);
+    }
+}
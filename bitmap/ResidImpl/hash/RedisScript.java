@@ -0,0 +1,93 @@
+package com.bitmap.ResidImpl.hash;
+
+import com.google.common.collect.Sets;
+import com.google.common.io.BaseEncoding;
+import redis.clients.jedis.Client;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.exceptions.JedisNoScriptException;
+import redis.clients.util.SafeEncoder;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A Lua script run with EVALSHA, so that a call sends the 40 bytes of its SHA1 instead of the whole
+ * script. The SHA1 is computed once, locally, as SCRIPT LOAD would reply it.
+ * <p>
+ * <p>A node that does not know the script replies NOSCRIPT, and the call is sent again with EVAL,
+ * which also loads the script there. Within a pipeline the first call to a node is sent with EVAL
+ * instead, so the EVALSHAs queued after it on the same connection find the script loaded.
+ */
+final class RedisScript {
+    private final String source;
+    private final byte[] script;
+    private final byte[] sha1;
+
+    /**
+     * The nodes, as host:port, that a pipeline already loaded the script on
+     */
+    private final Set<String> loadedNodes = Sets.newConcurrentHashSet();
+
+    RedisScript(String source) {
+        this.source = source;
+        this.script = SafeEncoder.encode(source);
+        this.sha1 = SafeEncoder.encode(sha1(script));
+    }
+
+    /**
+     * The Lua source of the script
+     */
+    String source() {
+        return source;
+    }
+
+    /**
+     * The SHA1 of the script, in lower case hex as redis names it
+     */
+    String sha1() {
+        return SafeEncoder.encode(sha1);
+    }
+
+    /**
+     * Runs the script on the node of {@code jedis}.
+     */
+    Object eval(Jedis jedis, List<byte[]> keys, List<byte[]> args) {
+        try {
+            return jedis.evalsha(sha1, keys, args);
+        } catch (JedisNoScriptException e) {
+            return jedis.eval(script, keys, args);
+        }
+    }
+
+    /**
+     * Queues the script on {@code pipeline}, a pipeline of {@code jedis}. A reply of
+     * {@link JedisNoScriptException} means that the node lost the script after it was loaded, e.g.
+     * to a restart or SCRIPT FLUSH: the call did not run, and can be run again with
+     * {@link #eval(Jedis, List, List)}.
+     */
+    Response<Object> eval(Jedis jedis, Pipeline pipeline, List<byte[]> keys, List<byte[]> args) {
+        Client client = jedis.getClient();
+        if (loadedNodes.add(client.getHost() + ":" + client.getPort())) {
+            return pipeline.eval(script, keys, args);
+        }
+        return pipeline.evalsha(sha1, keys, args);
+    }
+
+    /**
+     * Returns the SHA1 of {@code script} in lower case hex, as redis names scripts.
+     */
+    static String sha1(byte[] script) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform is required to support SHA-1
+            throw new AssertionError(e);
+        }
+        return BaseEncoding.base16().lowerCase().encode(digest.digest(script));
+    }
+}
@@ -0,0 +1,181 @@
+package com.bitmap.ResidImpl.hash;
+
+import com.bitmap.ResidImpl.hash.BloomFilterStrategies.RedisBitArray;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Gathers the puts and lookups of concurrent callers into batches that are sent to redis as one
+ * pipeline, so that a single round trip serves hundreds of callers. A batch is sent once it holds
+ * {@code maxBatchSize} requests, or {@code maxDelay} after its first request, whichever comes first.
+ * <p>
+ * <p>The puts of a batch are sent before its lookups, so a lookup sees every put submitted before
+ * it.
+ */
+final class RequestCoalescer {
+    private final RedisBitArray bits;
+    private final ScheduledExecutorService executor;
+    private final int maxBatchSize;
+    private final long maxDelayNanos;
+
+    private List<Request> batch = new ArrayList<Request>();
+
+    @Nullable
+    private ScheduledFuture<?> timer;
+
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    RequestCoalescer(RedisBitArray bits, ScheduledExecutorService executor, int maxBatchSize, long maxDelay, TimeUnit unit) {
+        checkArgument(maxBatchSize > 0, "maxBatchSize (%s) must be > 0", maxBatchSize);
+        checkArgument(maxDelay >= 0, "maxDelay (%s) must be >= 0", maxDelay);
+        this.bits = checkNotNull(bits);
+        this.executor = checkNotNull(executor);
+        this.maxBatchSize = maxBatchSize;
+        this.maxDelayNanos = unit.toNanos(maxDelay);
+    }
+
+    /**
+     * Queues the setting ({@code put == true}) or reading of the given bits. The future completes
+     * with the result of {@link RedisBitArray#setAll(long[])} or {@link RedisBitArray#getAll(long[])}
+     * once the batch has been sent.
+     *
+     * @throws RejectedExecutionException if the executor rejects the timer or the sending of the
+     *                                    batch, e.g. after its shutdown; the requests of a rejected
+     *                                    batch fail with the same exception
+     */
+    ListenableFuture<Boolean> submit(long[] bitIndexes, boolean put) {
+        Request request = new Request(bitIndexes, put);
+        List<Request> full = null;
+        synchronized (this) {
+            if (batch.isEmpty() && maxBatchSize > 1) {
+                // scheduled before the request is queued, so a rejection leaves nothing pending
+                timer = executor.schedule(flushTask, maxDelayNanos, TimeUnit.NANOSECONDS);
+            }
+            batch.add(request);
+            if (batch.size() >= maxBatchSize) {
+                full = takeBatch();
+            }
+        }
+        if (full != null) {
+            final List<Request> requests = full;
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        send(requests);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                fail(requests, e);
+                throw e;
+            }
+        }
+        return request.result;
+    }
+
+    /**
+     * Sends the current batch now, on the calling thread.
+     */
+    void flush() {
+        List<Request> requests;
+        synchronized (this) {
+            if (batch.isEmpty()) {
+                return;
+            }
+            requests = takeBatch();
+        }
+        send(requests);
+    }
+
+    private List<Request> takeBatch() {
+        List<Request> requests = batch;
+        batch = new ArrayList<Request>();
+        if (timer != null) {
+            // a timer that fires anyway only sends the next batch early
+            timer.cancel(false);
+            timer = null;
+        }
+        return requests;
+    }
+
+    private void send(List<Request> requests) {
+        List<Request> puts = new ArrayList<Request>();
+        List<Request> lookups = new ArrayList<Request>();
+        for (Request request : requests) {
+            (request.put ? puts : lookups).add(request);
+        }
+        try {
+            send(puts, true);
+            send(lookups, false);
+        } catch (Throwable e) {
+            // an Error skips the rest of the batch, which would otherwise never complete
+            fail(requests, e);
+            throw e;
+        }
+    }
+
+    private void send(List<Request> requests, boolean put) {
+        if (requests.isEmpty()) {
+            return;
+        }
+        List<long[]> elements = new ArrayList<long[]>(requests.size());
+        for (Request request : requests) {
+            elements.add(request.bitIndexes);
+        }
+        long start = System.nanoTime();
+        BitSet results;
+        try {
+            results = put ? bits.setAll(elements) : bits.getAll(elements);
+        } catch (RuntimeException e) {
+            bits.metrics().errors.increment();
+            fail(requests, e);
+            return;
+        }
+        long nanos = System.nanoTime() - start;
+        if (put) {
+            bits.metrics().put(elements.size(), nanos);
+        } else {
+            bits.metrics().lookedUp(elements.size(), results.cardinality(), nanos);
+        }
+        for (int i = 0; i < requests.size(); i++) {
+            requests.get(i).result.set(results.get(i));
+        }
+    }
+
+    /**
+     * Completes the requests not completed yet with {@code cause}.
+     */
+    private static void fail(List<Request> requests, Throwable cause) {
+        for (Request request : requests) {
+            request.result.setException(cause);
+        }
+    }
+
+    private static final class Request {
+        final long[] bitIndexes;
+        final boolean put;
+        final SettableFuture<Boolean> result = SettableFuture.create();
+
+        Request(long[] bitIndexes, boolean put) {
+            this.bitIndexes = bitIndexes;
+            this.put = put;
+        }
+    }
+}
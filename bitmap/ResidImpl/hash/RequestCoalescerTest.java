@@ -0,0 +1,206 @@
+package com.bitmap.ResidImpl.hash;
+
+import com.bitmap.ResidImpl.JedisPoolConnectionProvider;
+import com.bitmap.ResidImpl.RedisConnectionProvider;
+import com.google.common.base.Charsets;
+import com.google.common.util.concurrent.ListenableFuture;
+import redis.clients.jedis.Jedis;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks the async calls of a filter, batched by {@link RequestCoalescer}, against an
+ * {@link EmbeddedRedisServer}: the puts of a batch cost one round trip and its lookups another,
+ * and every future completes even when redis, the executor or the JVM fails the batch. Run it with
+ * {@code main}; a failed check throws an {@link AssertionError}.
+ */
+public class RequestCoalescerTest {
+    private static final Funnel<CharSequence> FUNNEL = Funnels.stringFunnel(Charsets.UTF_8);
+
+    public static void main(String[] args) throws Exception {
+        try (EmbeddedRedisServer server = EmbeddedRedisServer.start()) {
+            JedisPoolConnectionProvider connections = server.newConnectionProvider();
+            batching(server, connections);
+            maxDelay(connections);
+            redisFailure();
+            rejection(connections);
+            error(connections);
+        }
+        System.out.println("OK");
+    }
+
+    /**
+     * A full batch is sent at once, puts before lookups
+     */
+    private static void batching(EmbeddedRedisServer server, JedisPoolConnectionProvider connections) throws Exception {
+        BloomFilter<CharSequence> filter = BloomFilter.create(FUNNEL, 10000, 0.01, connections, "batching", "t");
+        filter.put("warm-up");
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+        try {
+            filter.enableAsync(executor, 50, 1, TimeUnit.HOURS);
+            long roundTrips = server.roundTrips();
+            List<ListenableFuture<Boolean>> puts = new ArrayList<ListenableFuture<Boolean>>();
+            for (String element : elements("b", 100)) {
+                puts.add(filter.putAsync(element));
+            }
+            for (ListenableFuture<Boolean> put : puts) {
+                put.get(10, TimeUnit.SECONDS);
+            }
+            check(server.roundTrips() - roundTrips == 2, "%s round trips for two full batches", server.roundTrips() - roundTrips);
+
+            // lookups of a batch see the puts queued before them in it
+            roundTrips = server.roundTrips();
+            ListenableFuture<Boolean> put = filter.putAsync("late");
+            ListenableFuture<Boolean> lookup = filter.mightContainAsync("late");
+            check(!lookup.isDone(), "a batch was sent before it was full");
+            filter.disableAsync();
+            check(put.get() && lookup.get(), "the lookup did not see the put before it");
+            // one pipeline for the puts of the batch, then one for its lookups
+            check(server.roundTrips() - roundTrips == 2, "%s round trips for one mixed batch", server.roundTrips() - roundTrips);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * A batch that does not fill up is sent after the delay
+     */
+    private static void maxDelay(JedisPoolConnectionProvider connections) throws Exception {
+        BloomFilter<CharSequence> filter = BloomFilter.create(FUNNEL, 10000, 0.01, connections, "delay", "t");
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+        try {
+            filter.enableAsync(executor, 1000, 20, TimeUnit.MILLISECONDS);
+            ListenableFuture<Boolean> put = filter.putAsync("a");
+            check(put.get(10, TimeUnit.SECONDS), "a was not new");
+            check(filter.mightContainAsync("a").get(10, TimeUnit.SECONDS), "a is missing");
+            filter.disableAsync();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * The futures of a batch that redis fails fail with its exception
+     */
+    private static void redisFailure() throws Exception {
+        EmbeddedRedisServer down = EmbeddedRedisServer.start();
+        try (JedisPoolConnectionProvider connections = down.newConnectionProvider()) {
+            BloomFilter<CharSequence> filter = BloomFilter.create(FUNNEL, 10000, 0.01, connections, "down", "t");
+            down.close();
+            ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+            try {
+                filter.enableAsync(executor, 2, 1, TimeUnit.HOURS);
+                List<ListenableFuture<Boolean>> futures = new ArrayList<ListenableFuture<Boolean>>();
+                futures.add(filter.putAsync("a"));
+                futures.add(filter.mightContainAsync("b"));
+                for (ListenableFuture<Boolean> future : futures) {
+                    try {
+                        future.get(10, TimeUnit.SECONDS);
+                        throw new AssertionError("a call succeeded without redis");
+                    } catch (ExecutionException expected) {
+                    }
+                }
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * A batch the executor rejects fails its futures, and leaves no batch behind
+     */
+    private static void rejection(JedisPoolConnectionProvider connections) throws Exception {
+        BloomFilter<CharSequence> filter = BloomFilter.create(FUNNEL, 10000, 0.01, connections, "rejected", "t");
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+        try {
+            filter.enableAsync(executor, 2, 1, TimeUnit.HOURS);
+            ListenableFuture<Boolean> queued = filter.putAsync("a");
+            executor.shutdown();
+            try {
+                filter.putAsync("b");
+                throw new AssertionError("sent a batch on a shut down executor");
+            } catch (RejectedExecutionException expected) {
+            }
+            checkFailed(queued, RejectedExecutionException.class);
+            try {
+                filter.putAsync("c");
+                throw new AssertionError("timed a batch on a shut down executor");
+            } catch (RejectedExecutionException expected) {
+            }
+            // the rejected call was not queued, so there is nothing left to send
+            filter.disableAsync();
+            check(!filter.mightContain("c"), "a rejected put was sent");
+        } finally {
+            // drops the timer of the first batch, still queued
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * An Error thrown while sending a batch fails the futures of the whole batch
+     */
+    private static void error(final JedisPoolConnectionProvider connections) throws Exception {
+        BloomFilter.create(FUNNEL, 10000, 0.01, connections, "error", "t");
+        final boolean[] failing = new boolean[1];
+        RedisConnectionProvider failingConnections = new RedisConnectionProvider() {
+            @Override
+            public Jedis getResource(String key) {
+                if (failing[0]) {
+                    throw new InjectedError();
+                }
+                return connections.getResource(key);
+            }
+        };
+        BloomFilter<CharSequence> filter = BloomFilter.open(FUNNEL, failingConnections, "error", "t");
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+        try {
+            filter.enableAsync(executor, 100, 1, TimeUnit.HOURS);
+            ListenableFuture<Boolean> put = filter.putAsync("a");
+            ListenableFuture<Boolean> lookup = filter.mightContainAsync("b");
+            failing[0] = true;
+            try {
+                filter.disableAsync();
+                throw new AssertionError("the Error did not reach the caller of the flush");
+            } catch (InjectedError expected) {
+            }
+            checkFailed(put, InjectedError.class);
+            checkFailed(lookup, InjectedError.class);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void checkFailed(ListenableFuture<Boolean> future, Class<? extends Throwable> cause) throws Exception {
+        check(future.isDone(), "a future of a failed batch is pending");
+        try {
+            future.get();
+            throw new AssertionError("a future of a failed batch succeeded");
+        } catch (ExecutionException e) {
+            check(cause.isInstance(e.getCause()), "failed with %s, not %s", e.getCause(), cause.getSimpleName());
+        }
+    }
+
+    private static final class InjectedError extends Error {
+        private static final long serialVersionUID = 0L;
+    }
+
+    private static List<String> elements(String prefix, int count) {
+        List<String> elements = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++) {
+            elements.add(prefix + i);
+        }
+        return elements;
+    }
+
+    private static void check(boolean condition, String message, Object... args) {
+        if (!condition) {
+            throw new AssertionError(String.format(message, args));
+        }
+    }
+}
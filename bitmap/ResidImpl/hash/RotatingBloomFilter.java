@@ -0,0 +1,214 @@
+package com.bitmap.ResidImpl.hash;
+
+import com.bitmap.ResidImpl.RedisConnectionProvider;
+import com.bitmap.ResidImpl.hash.BloomFilter.Strategy;
+import com.bitmap.ResidImpl.hash.BloomFilterStrategies.RedisBitArray;
+import com.google.common.annotations.Beta;
+import com.google.errorprone.annotations.CanIgnoreReturnValue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * A Redis-backed Bloom filter over a sliding window of time, e.g. "seen this user in the last 7
+ * days". Time is cut into buckets of a fixed duration, each with its own filter: puts go to the
+ * bucket of the current time, and {@link #mightContain} checks the last {@code buckets} buckets in
+ * one pipeline.
+ * <p>
+ * <p>Old buckets never have to be rebuilt or deleted by hand. The first put of a new bucket UNLINKs
+ * the bucket that just left the window, so redis frees it in the background rather than on a
+ * blocking DEL or expiry. Every bucket's keys also expire one bucket after they leave the window,
+ * in case no put ever rotates past them.
+ *
+ * @param <T> the type of instances that the filter accepts
+ */
+@Beta
+public final class RotatingBloomFilter<T> {
+    private final Funnel<? super T> funnel;
+    private final Strategy strategy;
+
+    /**
+     * The geometry shared by all the buckets
+     */
+    private final FilterHeader header;
+
+    private final RedisConnectionProvider connections;
+    private final String actKey;
+    private final String statType;
+    private final long bucketMillis;
+    private final int buckets;
+
+    /**
+     * The bit arrays of the buckets in use, by bucket number
+     */
+    private final ConcurrentMap<Long, RedisBitArray> opened = new ConcurrentHashMap<Long, RedisBitArray>();
+
+    /**
+     * The latest bucket this instance created in redis; earlier buckets are not created again
+     */
+    private volatile long createdBucket = Long.MIN_VALUE;
+
+    private RotatingBloomFilter(
+            Funnel<? super T> funnel,
+            Strategy strategy,
+            FilterHeader header,
+            RedisConnectionProvider connections,
+            String actKey,
+            String statType,
+            long bucketMillis,
+            int buckets) {
+        this.funnel = funnel;
+        this.strategy = strategy;
+        this.header = header;
+        this.connections = connections;
+        this.actKey = actKey;
+        this.statType = statType;
+        this.bucketMillis = bucketMillis;
+        this.buckets = buckets;
+    }
+
+    /**
+     * Returns {@code true} if the element <i>might</i> have been put in the current bucket or one
+     * of the {@code buckets - 1} before it, {@code false} if this is <i>definitely</i> not the case.
+     */
+    public boolean mightContain(T object) {
+        long current = currentBucket();
+        List<RedisBitArray> window = new ArrayList<RedisBitArray>(buckets);
+        for (long bucket = current; bucket > current - buckets; bucket--) {
+            window.add(bucket(bucket));
+        }
+        return !RedisBitArray.getAll(window, Collections.nCopies(buckets, bitIndexes(object))).isEmpty();
+    }
+
+    /**
+     * Puts an element into the bucket of the current time.
+     *
+     * @return true if the bits of the current bucket changed, i.e. this is <i>definitely</i> the
+     * first time {@code object} has been added to this bucket. It may still be in earlier buckets.
+     */
+    @CanIgnoreReturnValue
+    public boolean put(T object) {
+        long bucket = currentBucket();
+        RedisBitArray bits = bucket <= createdBucket ? bucket(bucket) : create(bucket);
+        return bits.setAll(bitIndexes(object));
+    }
+
+    private long[] bitIndexes(T object) {
+        return strategy.bitIndexes(object, funnel, header.numHashFunctions(), header.bitSize());
+    }
+
+    private long currentBucket() {
+        return System.currentTimeMillis() / bucketMillis;
+    }
+
+    /**
+     * Creates the keys of {@code bucket} unless they exist and unlinks the bucket that just left the
+     * window. The keys expire one bucket after they leave the window: the UNLINK frees them in the
+     * background, and the expiry is only a safety net for buckets nobody rotated past. Expiring them
+     * as they leave would let redis free them synchronously before the UNLINK runs.
+     */
+    private synchronized RedisBitArray create(long bucket) {
+        if (bucket <= createdBucket) {
+            return bucket(bucket);
+        }
+        String bucketStatType = bucketStatType(bucket);
+        FilterHeader stored = RedisBitArray.createHeader(header, connections, actKey, bucketStatType);
+        checkState(
+                stored.equals(header),
+                "BloomFilter of act %s statType %s already exists as %s, not %s",
+                actKey,
+                bucketStatType,
+                stored,
+                header);
+        RedisBitArray bits = bucket(bucket);
+        bits.preallocate();
+        bits.expireAt((bucket + buckets + 1) * bucketMillis);
+        createdBucket = bucket;
+
+        new RedisBitArray(header, connections, actKey, bucketStatType(bucket - buckets)).unlink();
+        return bits;
+    }
+
+    /**
+     * Returns the bit array of {@code bucket}, without touching redis. A bucket that was never
+     * created reads as empty.
+     */
+    private RedisBitArray bucket(long bucket) {
+        RedisBitArray bits = opened.get(bucket);
+        if (bits == null) {
+            for (Long old : opened.keySet()) {
+                if (old <= bucket - buckets) {
+                    opened.remove(old);
+                }
+            }
+            RedisBitArray created = new RedisBitArray(header, connections, actKey, bucketStatType(bucket));
+            bits = opened.putIfAbsent(bucket, created);
+            if (bits == null) {
+                bits = created;
+            }
+        }
+        return bits;
+    }
+
+    private String bucketStatType(long bucket) {
+        return statType + "_" + bucket;
+    }
+
+    /**
+     * Creates a filter over the last {@code buckets} buckets of {@code bucketDuration} each, every
+     * bucket sized for {@code expectedInsertions} elements at false positive probability
+     * {@code fpp}. Buckets start at multiples of {@code bucketDuration} since the epoch, so all the
+     * processes sharing a filter agree on them.
+     * <p>
+     * <p>Membership is checked against all the buckets of the window, so its false positive
+     * probability is up to {@code buckets} times {@code fpp}.
+     *
+     * @param expectedInsertions the number of expected insertions per bucket
+     * @param bucketDuration     the time span of one bucket; must be positive
+     * @param buckets            the number of buckets in the window, the current one included
+     */
+    public static <T> RotatingBloomFilter<T> create(
+            Funnel<? super T> funnel,
+            long expectedInsertions,
+            double fpp,
+            RedisConnectionProvider connections,
+            long bucketDuration,
+            TimeUnit unit,
+            int buckets,
+            String actKey,
+            String statType) {
+        checkNotNull(funnel);
+        checkNotNull(connections);
+        checkArgument(
+                expectedInsertions >= 0, "Expected insertions (%s) must be >= 0", expectedInsertions);
+        checkArgument(fpp > 0.0, "False positive probability (%s) must be > 0.0", fpp);
+        checkArgument(fpp < 1.0, "False positive probability (%s) must be < 1.0", fpp);
+        long bucketMillis = unit.toMillis(bucketDuration);
+        checkArgument(bucketMillis > 0, "bucketDuration (%s %s) must be >= 1ms", bucketDuration, unit);
+        checkArgument(buckets > 0, "buckets (%s) must be > 0", buckets);
+
+        if (expectedInsertions == 0) {
+            expectedInsertions = 1;
+        }
+        Strategy strategy = BloomFilterStrategies.MURMUR128_MITZ_64;
+        long numBits = BloomFilter.optimalNumOfBits(expectedInsertions, fpp);
+        long bitSize = RedisBitArray.redisBitSize(numBits);
+        FilterHeader header = new FilterHeader(
+                bitSize,
+                BloomFilter.optimalNumOfHashFunctions(expectedInsertions, numBits),
+                strategy.ordinal(),
+                FilterHeader.funnelId(funnel),
+                RedisBitArray.minSegments(bitSize),
+                false);
+        return new RotatingBloomFilter<T>(
+                funnel, strategy, header, connections, actKey, statType, bucketMillis, buckets);
+    }
+}
@@ -0,0 +1,210 @@
+package com.bitmap.ResidImpl.hash;
+
+import com.google.common.math.LongMath;
+import com.google.common.primitives.Ints;
+
+import java.math.RoundingMode;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * A lock-free local buffer of bits waiting to be merged into a redis bitmap. Bits are kept in dense
+ * pages of 64-bit words, allocated on the first write to them, and every block of
+ * {@link #BLOCK_WORDS} words with bits pending is marked in a dirty-block bitmap; a flush sends the
+ * dirty blocks whole, so setting the same bit again, or a neighbouring one, before the next flush
+ * costs nothing on the wire. The buffer takes up to {@code bitSize / 8} bytes, 64KB per page
+ * touched, plus a reference per page.
+ * <p>
+ * <p>Pending bits stay set while they are flushed, so readers keep seeing them, and are only
+ * cleared by {@link #flushed} once they are in redis. A writer sets its bit before marking its
+ * block dirty, and a flush clears the dirty mark before reading the block, so a bit set while its
+ * block is flushed is either in the flushed words or in a block marked dirty again: no bit is ever
+ * lost.
+ */
+final class WriteBehindBuffer {
+    private static final int LONG_ADDRESSABLE_BITS = 6;
+
+    /**
+     * Words per block, the unit of dirty tracking and flushing (512 bytes)
+     */
+    static final int BLOCK_WORDS = 64;
+
+    /**
+     * Blocks per page, the unit of allocation (64KB)
+     */
+    private static final int PAGE_BLOCKS = 128;
+
+    private static final int PAGE_WORDS = PAGE_BLOCKS * BLOCK_WORDS;
+
+    /**
+     * Each page holds its words, then one dirty bit per block
+     */
+    private static final int DIRTY_WORDS = PAGE_BLOCKS / Long.SIZE;
+
+    private final long words;
+    private final AtomicReferenceArray<AtomicLongArray> pages;
+
+    /**
+     * @param bitSize the number of bits of the bitmap
+     */
+    WriteBehindBuffer(long bitSize) {
+        checkArgument(bitSize > 0, "bitSize (%s) must be > 0", bitSize);
+        this.words = LongMath.divide(bitSize, Long.SIZE, RoundingMode.CEILING);
+        this.pages = new AtomicReferenceArray<AtomicLongArray>(
+                Ints.checkedCast(LongMath.divide(words, PAGE_WORDS, RoundingMode.CEILING)));
+    }
+
+    /**
+     * Sets all the given bits. Returns true if any of them was not pending yet.
+     */
+    boolean setAll(long[] bitIndexes) {
+        boolean bitsChanged = false;
+        for (long bitIndex : bitIndexes) {
+            bitsChanged |= set(bitIndex);
+        }
+        return bitsChanged;
+    }
+
+    /**
+     * Returns true if the bit changed value, i.e. it was not pending yet.
+     */
+    boolean set(long bitIndex) {
+        long wordIndex = bitIndex >>> LONG_ADDRESSABLE_BITS;
+        AtomicLongArray page = page(wordIndex);
+        int word = (int) (wordIndex % PAGE_WORDS);
+        if (!or(page, word, 1L << bitIndex)) { // only cares about low 6 bits of bitIndex
+            return false;
+        }
+        int block = word / BLOCK_WORDS;
+        or(page, PAGE_WORDS + block / Long.SIZE, 1L << block);
+        return true;
+    }
+
+    /**
+     * Returns whether the bit is waiting to be flushed. A {@code false} says nothing about redis.
+     */
+    boolean get(long bitIndex) {
+        return (word(bitIndex >>> LONG_ADDRESSABLE_BITS) & (1L << bitIndex)) != 0;
+    }
+
+    /**
+     * Returns the pending bits of word {@code wordIndex}, bit {@code i} of the word being bit
+     * {@code wordIndex * 64 + i} of the bitmap.
+     */
+    long word(long wordIndex) {
+        AtomicLongArray page = pages.get((int) (wordIndex / PAGE_WORDS));
+        return page == null ? 0 : page.get((int) (wordIndex % PAGE_WORDS));
+    }
+
+    boolean isEmpty() {
+        for (int i = 0; i < pages.length(); i++) {
+            AtomicLongArray page = pages.get(i);
+            if (page != null) {
+                for (int j = 0; j < DIRTY_WORDS; j++) {
+                    if (page.get(PAGE_WORDS + j) != 0) {
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Takes the dirty blocks: returns their words by the word index of the block, the last block
+     * cut at the end of the bitmap. The bits stay pending until {@link #flushed} or
+     * {@link #restore} is called with the result; calls of the three must not overlap.
+     */
+    SortedMap<Long, long[]> drain() {
+        SortedMap<Long, long[]> blocks = new TreeMap<Long, long[]>();
+        for (int i = 0; i < pages.length(); i++) {
+            AtomicLongArray page = pages.get(i);
+            if (page == null) {
+                continue;
+            }
+            for (int j = 0; j < DIRTY_WORDS; j++) {
+                long dirty = page.getAndSet(PAGE_WORDS + j, 0);
+                for (; dirty != 0; dirty &= dirty - 1) {
+                    int block = j * Long.SIZE + Long.numberOfTrailingZeros(dirty);
+                    long firstWord = (long) i * PAGE_WORDS + (long) block * BLOCK_WORDS;
+                    long[] blockWords = new long[(int) Math.min(BLOCK_WORDS, words - firstWord)];
+                    for (int k = 0; k < blockWords.length; k++) {
+                        blockWords[k] = page.get(block * BLOCK_WORDS + k);
+                    }
+                    blocks.put(firstWord, blockWords);
+                }
+            }
+        }
+        return blocks;
+    }
+
+    /**
+     * Signals that the blocks of a {@link #drain()} are in redis, clearing their bits unless they
+     * were set again since.
+     */
+    void flushed(SortedMap<Long, long[]> blocks) {
+        for (Map.Entry<Long, long[]> entry : blocks.entrySet()) {
+            long firstWord = entry.getKey();
+            AtomicLongArray page = pages.get((int) (firstWord / PAGE_WORDS));
+            int word = (int) (firstWord % PAGE_WORDS);
+            for (long flushed : entry.getValue()) {
+                andNot(page, word++, flushed);
+            }
+        }
+    }
+
+    /**
+     * Marks the blocks of a {@link #drain()} that could not be flushed dirty again, so the next
+     * flush retries them.
+     */
+    void restore(SortedMap<Long, long[]> blocks) {
+        for (Long firstWord : blocks.keySet()) {
+            AtomicLongArray page = pages.get((int) (firstWord / PAGE_WORDS));
+            int block = (int) (firstWord % PAGE_WORDS / BLOCK_WORDS);
+            or(page, PAGE_WORDS + block / Long.SIZE, 1L << block);
+        }
+    }
+
+    private AtomicLongArray page(long wordIndex) {
+        int index = (int) (wordIndex / PAGE_WORDS);
+        AtomicLongArray page = pages.get(index);
+        if (page == null) {
+            AtomicLongArray created = new AtomicLongArray(PAGE_WORDS + DIRTY_WORDS);
+            if (pages.compareAndSet(index, null, created)) {
+                return created;
+            }
+            page = pages.get(index);
+        }
+        return page;
+    }
+
+    private static boolean or(AtomicLongArray array, int index, long mask) {
+        long oldValue;
+        long newValue;
+        do {
+            oldValue = array.get(index);
+            newValue = oldValue | mask;
+            if (oldValue == newValue) {
+                return false;
+            }
+        } while (!array.compareAndSet(index, oldValue, newValue));
+        return true;
+    }
+
+    private static void andNot(AtomicLongArray array, int index, long mask) {
+        long oldValue;
+        long newValue;
+        do {
+            oldValue = array.get(index);
+            newValue = oldValue & ~mask;
+            if (oldValue == newValue) {
+                return;
+            }
+        } while (!array.compareAndSet(index, oldValue, newValue));
+    }
+}
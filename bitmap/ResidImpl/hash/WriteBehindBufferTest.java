@@ -0,0 +1,111 @@
+package com.bitmap.ResidImpl.hash;
+
+import com.bitmap.ResidImpl.JedisPoolConnectionProvider;
+import com.google.common.base.Charsets;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks {@link WriteBehindBuffer} on its own, then the write-behind mode of a filter against an
+ * {@link EmbeddedRedisServer}: puts stay local until a flush merges them in. Run it with
+ * {@code main}; a failed check throws an {@link AssertionError}.
+ */
+public class WriteBehindBufferTest {
+    private static final Funnel<CharSequence> FUNNEL = Funnels.stringFunnel(Charsets.UTF_8);
+
+    public static void main(String[] args) throws Exception {
+        writeBehindBuffer();
+        try (EmbeddedRedisServer server = EmbeddedRedisServer.start()) {
+            writeBehindFlush(server, server.newConnectionProvider());
+        }
+        System.out.println("OK");
+    }
+
+    /**
+     * The dirty blocks of WriteBehindBuffer, through drain, flushed and restore
+     */
+    private static void writeBehindBuffer() {
+        long bitSize = 100000;
+        long lastWord = (bitSize - 1) / Long.SIZE;
+        long blockBits = WriteBehindBuffer.BLOCK_WORDS * Long.SIZE;
+        WriteBehindBuffer buffer = new WriteBehindBuffer(bitSize);
+        check(buffer.isEmpty(), "a new buffer is not empty");
+        check(buffer.setAll(new long[]{0, 63, blockBits + 1, bitSize - 1}), "no bit was new");
+        check(!buffer.setAll(new long[]{0, 63}), "a pending bit was new");
+        check(buffer.get(63) && !buffer.get(62), "read the wrong pending bits");
+
+        SortedMap<Long, long[]> blocks = buffer.drain();
+        long lastBlock = lastWord - lastWord % WriteBehindBuffer.BLOCK_WORDS;
+        check(blocks.keySet().toString().equals("[0, " + WriteBehindBuffer.BLOCK_WORDS + ", " + lastBlock + "]"),
+                "drained blocks %s", blocks.keySet());
+        check(blocks.get(0L).length == WriteBehindBuffer.BLOCK_WORDS, "a block of %s words", blocks.get(0L).length);
+        check(blocks.get(0L)[0] == (1L | 1L << 63), "drained word %s", blocks.get(0L)[0]);
+        check(blocks.get(lastBlock).length == lastWord - lastBlock + 1,
+                "the last block was not cut at the end of the bitmap: %s words", blocks.get(lastBlock).length);
+        check(buffer.isEmpty(), "a drained buffer has dirty blocks");
+        check(buffer.get(63), "a bit left the buffer before it was flushed");
+
+        // a failed flush marks its blocks dirty again
+        buffer.restore(blocks);
+        check(buffer.drain().keySet().equals(blocks.keySet()), "restored other blocks");
+
+        // a bit set during a flush outlives it
+        buffer.set(1);
+        buffer.flushed(blocks);
+        check(!buffer.get(0) && !buffer.get(63) && !buffer.get(bitSize - 1), "a flushed bit is still pending");
+        check(buffer.get(1), "a bit set during the flush was cleared");
+        check(buffer.drain().keySet().toString().equals("[0]"), "the bit set during the flush is not dirty");
+    }
+
+    /**
+     * Write-behind puts stay local until a flush merges them in whole blocks
+     */
+    private static void writeBehindFlush(EmbeddedRedisServer server, JedisPoolConnectionProvider connections) {
+        BloomFilter<CharSequence> filter = BloomFilter.create(FUNNEL, 100000, 0.01, connections, "writeBehind", "t");
+        List<String> elements = elements("w", 300);
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+        try {
+            filter.enableWriteBehind(executor, 1, TimeUnit.HOURS);
+            long roundTrips = server.roundTrips();
+            for (String element : elements) {
+                filter.put(element);
+            }
+            check(server.roundTrips() == roundTrips, "%s round trips for buffered puts", server.roundTrips() - roundTrips);
+            check(filter.mightContainAll(elements).cardinality() == elements.size(), "a pending element is missing");
+
+            BloomFilter<CharSequence> reader = BloomFilter.open(FUNNEL, connections, "writeBehind", "t");
+            check(reader.mightContainAll(elements).cardinality() < elements.size(), "the puts reached redis before the flush");
+
+            long commands = server.commands();
+            filter.flush();
+            check(server.commands() - commands <= 2, "flushed with %s commands", server.commands() - commands);
+            check(reader.mightContainAll(elements).cardinality() == elements.size(), "a flushed element is missing");
+
+            commands = server.commands();
+            filter.flush();
+            check(server.commands() == commands, "an empty flush sent %s commands", server.commands() - commands);
+        } finally {
+            filter.disableWriteBehind();
+            executor.shutdownNow();
+        }
+    }
+
+    private static List<String> elements(String prefix, int count) {
+        List<String> elements = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++) {
+            elements.add(prefix + i);
+        }
+        return elements;
+    }
+
+    private static void check(boolean condition, String message, Object... args) {
+        if (!condition) {
+            throw new AssertionError(String.format(message, args));
+        }
+    }
+}